@@ -0,0 +1,100 @@
+package cpw.mods.jarhandling.benchmarks;
+
+import cpw.mods.jarhandling.SecureJar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Verifies every entry of a freshly signed jar once per iteration, shared between the benchmark threads, to show how
+ * verification of one jar scales across cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SecureJarVerificationBenchmark {
+    private static final int ENTRIES = 2000;
+    private static final int ENTRY_SIZE = 32 * 1024;
+
+    private Path signedJar;
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> contents = new ArrayList<>();
+    private SecureJar jar;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void createSignedJar() throws Exception {
+        var dir = Files.createTempDirectory("sjhbench");
+        signedJar = dir.resolve("signed.jar");
+        var random = new Random(42);
+        try (var jos = new JarOutputStream(Files.newOutputStream(signedJar))) {
+            for (int i = 0; i < ENTRIES; i++) {
+                var name = "bench/Entry" + i + ".class";
+                var content = new byte[ENTRY_SIZE];
+                random.nextBytes(content);
+                jos.putNextEntry(new JarEntry(name));
+                jos.write(content);
+                names.add(name);
+                contents.add(content);
+            }
+        }
+        var keystore = dir.resolve("bench.jks").toString();
+        run(tool("keytool"), "-genkeypair", "-keystore", keystore, "-storepass", "benchpass", "-keypass", "benchpass",
+                "-alias", "bench", "-keyalg", "RSA", "-dname", "CN=bench", "-validity", "1");
+        run(tool("jarsigner"), "-keystore", keystore, "-storepass", "benchpass", signedJar.toString(), "bench");
+    }
+
+    @Setup(Level.Iteration)
+    public void openJar() {
+        // A fresh jar every iteration, so no entry has been verified yet
+        jar = SecureJar.from(signedJar);
+        next.set(0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void verifyAllOneThread(Blackhole blackhole) {
+        verifyShare(blackhole);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void verifyAllFourThreads(Blackhole blackhole) {
+        verifyShare(blackhole);
+    }
+
+    private void verifyShare(Blackhole blackhole) {
+        var provider = jar.moduleDataProvider();
+        for (int i = next.getAndIncrement(); i < ENTRIES; i = next.getAndIncrement()) {
+            blackhole.consume(provider.verifyAndGetSigners(names.get(i), contents.get(i)));
+        }
+    }
+
+    private static String tool(String name) {
+        return Path.of(System.getProperty("java.home"), "bin", name).toString();
+    }
+
+    private static void run(String... command) throws IOException, InterruptedException {
+        var process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0)
+            throw new IllegalStateException("Failed to run " + String.join(" ", command));
+    }
+}
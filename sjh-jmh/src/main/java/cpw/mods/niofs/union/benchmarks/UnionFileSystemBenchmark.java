@@ -23,6 +23,14 @@ public class UnionFileSystemBenchmark {
     private static UnionFileSystem fileSystem;
     private static UnionFileSystem dirFileSystem;
     private static Path rawdir;
+    private static final List<String> BATCH_NAMES = List.of(
+            "cpw/mods/niofs/union/UnionPath.class", //jar 1
+            "net/minecraftforge/client/event/GuiOpenEvent.class", //jar 2
+            "cpw/mods/modlauncher/Launcher.class", //jar 3
+            "cpw/mods/modlauncher/api/NoIDontExist.class",
+            "net/minecraftforge/client/nonexistent/Nope.class",
+            "Missing.class"
+    );
 
     @Setup
     public void setup() throws Exception {
@@ -52,6 +60,15 @@ public class UnionFileSystemBenchmark {
         runExists("Missing.class", false);
     }
 
+    @Benchmark
+    public void testJarBatchExists(Blackhole blackhole) throws Exception {
+        var found = fileSystem.existsAll(BATCH_NAMES);
+        if (found.cardinality() != 3) {
+            throw new RuntimeException("Wrong exists status");
+        }
+        blackhole.consume(found);
+    }
+
     @Benchmark
     public void testNativeFileExists(Blackhole blackhole) throws Exception {
         runNativeFileExists("ThisFileExists.txt", true);
@@ -36,7 +36,7 @@ public interface JarMetadata {
     static JarMetadata from(final SecureJar jar, final Path... path) {
         if (path.length==0) throw new IllegalArgumentException("Need at least one path");
         final var pkgs = jar.getPackages();
-        var mi = jar.moduleDataProvider().findFile("module-info.class");
+        var mi = jar.moduleDataProvider().open("module-info.class");
         if (mi.isPresent()) {
             return new ModuleJarMetadata(mi.get(), pkgs);
         } else {
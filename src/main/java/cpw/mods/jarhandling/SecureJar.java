@@ -10,9 +10,16 @@ import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.CodeSigner;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -46,20 +53,66 @@ public interface SecureJar {
 
     boolean hasSecurityData();
 
+    /**
+     * Signed jars verify every entry listed in their manifest on a background pool once built when
+     * {@code securejarhandler.backgroundVerify} is set, instead of one by one as classes are loaded.
+     *
+     * Results cached from an earlier launch are only taken once the archive's hash confirms them, on the same pool.
+     *
+     * @return completes once background verification, and taking cached results, is done, already complete if there
+     * is neither
+     */
+    default CompletableFuture<Void> verificationComplete() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return how many of the manifest's entries background verification has dealt with so far
+     */
+    default int verificationProgress() {
+        return 0;
+    }
+
+    /**
+     * A cheap identity for what this jar holds, for persistent caches to key on. It is worked out from the name, size
+     * and CRC of every file, which archives list in their central directory, and the manifest, and is kept for the
+     * life of the jar. Two jars with the same fingerprint hold the same files, as far as CRCs can tell.
+     * <p>
+     * By default it is worked out from {@link #getRootPath()} every time, reading files that aren't in an archive.
+     *
+     * @return a hex encoded SHA-256
+     */
+    default String contentFingerprint() {
+        return Jar.contentFingerprint(this);
+    }
+
+    /**
+     * A hash of the content of every file in this jar, for when a CRC isn't good enough. It is worked out in parallel
+     * the first time it is asked for and kept for the life of the jar. It doesn't depend on how the archive is laid
+     * out or compressed, so it isn't the hash of the archive file.
+     * <p>
+     * By default it is worked out from {@link #getRootPath()} every time it is asked for.
+     *
+     * @return completes with a hex encoded SHA-256 based hash
+     */
+    default CompletableFuture<String> contentHash() {
+        return Jar.contentHash(this);
+    }
+
     static SecureJar from(final Path... paths) {
-        return from(jar -> JarMetadata.from(jar, paths), paths);
+        return Jar.of(null, null, null, null, paths);
     }
 
     static SecureJar from(BiPredicate<String, String> filter, final Path... paths) {
-        return from(jar->JarMetadata.from(jar, paths), filter, paths);
+        return Jar.of(null, null, filter, null, paths);
     }
 
     static SecureJar from(Function<SecureJar, JarMetadata> metadataSupplier, final Path... paths) {
-        return from(Manifest::new, metadataSupplier, paths);
+        return Jar.of(null, metadataSupplier, null, null, paths);
     }
 
     static SecureJar from(Function<SecureJar, JarMetadata> metadataSupplier, BiPredicate<String, String> filter, final Path... paths) {
-        return from(Manifest::new, metadataSupplier, filter, paths);
+        return Jar.of(null, metadataSupplier, filter, null, paths);
     }
 
     static SecureJar from(Supplier<Manifest> defaultManifest, Function<SecureJar, JarMetadata> metadataSupplier, final Path... paths) {
@@ -67,7 +120,79 @@ public interface SecureJar {
     }
 
     static SecureJar from(Supplier<Manifest> defaultManifest, Function<SecureJar, JarMetadata> metadataSupplier, BiPredicate<String, String> filter, final Path... paths) {
-        return new Jar(defaultManifest, metadataSupplier, filter, paths);
+        return Jar.of(defaultManifest, metadataSupplier, filter, null, paths);
+    }
+
+    /**
+     * Builds a signed jar whose content the deployment already vouches for, see {@link Pin}.
+     */
+    static SecureJar from(final Pin pin, final Path path) {
+        return Jar.of(null, null, null, pin, path);
+    }
+
+    /**
+     * Builds a jar whose name, descriptor, packages and services come from {@code securejarhandler.metadataCache},
+     * leaving the filesystem, the signatures and the multi-release scan until its content is first needed.
+     * Jars listed in a module finder but never loaded from cost next to nothing this way.
+     * An archive the cache doesn't know yet is built as {@link #from(Path...)} would.
+     */
+    static SecureJar deferred(final Path path) {
+        return Jar.deferred(null, path);
+    }
+
+    /**
+     * Like {@link #deferred(Path)}, for a jar pinned as in {@link #from(Pin, Path)}.
+     */
+    static SecureJar deferred(final Pin pin, final Path path) {
+        return Jar.deferred(pin, path);
+    }
+
+    /**
+     * Builds one jar per group of paths, see {@link #fromAll(Function, List)}.
+     */
+    static List<SecureJar> fromAll(final List<Path[]> pathGroups) {
+        return fromAll(SecureJar::from, pathGroups);
+    }
+
+    /**
+     * Builds one jar per group of paths concurrently, on at most {@code securejarhandler.batchThreads} threads
+     * (default: the number of processors, capped at 8) as most of the work is I/O.
+     * Every group is attempted even if some fail.
+     *
+     * @param factory builds a jar from one group, such as {@code SecureJar::from}
+     * @param pathGroups the paths of each jar
+     * @return the jars, in the order of {@code pathGroups}
+     * @throws IllegalStateException if any jar failed, with each failure attached as a suppressed exception
+     */
+    static List<SecureJar> fromAll(final Function<Path[], SecureJar> factory, final List<Path[]> pathGroups) {
+        if (pathGroups.isEmpty()) return List.of();
+        final int threads = Math.min(pathGroups.size(), Integer.getInteger("securejarhandler.batchThreads", Math.min(Runtime.getRuntime().availableProcessors(), 8)));
+        final var counter = new AtomicInteger();
+        final var executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            var thread = new Thread(r, "SecureJar-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final var futures = executor.invokeAll(pathGroups.stream().<Callable<SecureJar>>map(paths -> () -> factory.apply(paths)).toList());
+            final var jars = new ArrayList<SecureJar>(futures.size());
+            IllegalStateException failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    jars.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = new IllegalStateException("Failed to build jars");
+                    failure.addSuppressed(new IllegalStateException("Failed to build jar from " + Arrays.toString(pathGroups.get(i)), e.getCause()));
+                }
+            }
+            if (failure != null) throw failure;
+            return jars;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building jars", e);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     Set<String> getPackages();
@@ -96,6 +221,17 @@ public interface SecureJar {
         }
     }
 
+    /**
+     * The expected state of a jar shipped with a known fingerprint. If the SHA-256 of the whole archive and the
+     * certificates of its signers match, the archive is hashed once and every entry listed in its manifest reports
+     * {@link Status#VERIFIED} straight away, without digesting entries one by one. Otherwise the jar is verified
+     * entry by entry as usual.
+     *
+     * @param sha256 the hex SHA-256 of the archive file, as printed by {@code sha256sum}
+     * @param signers the hex SHA-256 fingerprints of the certificates of the jar's signers
+     */
+    record Pin(String sha256, Set<String> signers) {}
+
     enum Status {
         NONE, INVALID, UNVERIFIED, VERIFIED
     }
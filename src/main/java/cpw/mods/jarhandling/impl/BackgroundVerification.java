@@ -0,0 +1,107 @@
+package cpw.mods.jarhandling.impl;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Verifies every entry listed in a signed jar's manifest on a small shared pool, so most of the hashing is done
+ * before classes are loaded instead of on the class loading thread. Opt in with {@code securejarhandler.backgroundVerify},
+ * the pool has {@code securejarhandler.verifyThreads} daemon threads (default: the number of processors, capped at 4).
+ * <p>
+ * A class load that needs an entry the pool is hashing right now waits for it. Any other entry it verifies itself
+ * from the bytes it already holds, and the pool skips entries that are known by the time it gets to them.
+ */
+class BackgroundVerification {
+    private static final int BATCH = 64;
+
+    private static final class Pool {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Math.max(1, Integer.getInteger("securejarhandler.verifyThreads", Math.min(Runtime.getRuntime().availableProcessors(), 4))), r -> {
+                    var thread = new Thread(r, "SecureJar-verify-" + COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private final EntryStatusTable table;
+    private final IntConsumer verifier;
+    private final Map<Integer, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger processed = new AtomicInteger();
+    private final CompletableFuture<Void> completion;
+
+    /**
+     * @param verifier reads and verifies one entry by id, recording the outcome in the table
+     * @param after completes once the table holds every result known without hashing
+     */
+    private BackgroundVerification(final EntryStatusTable table, final IntConsumer verifier, final CompletableFuture<Void> after) {
+        this.table = table;
+        this.verifier = verifier;
+        var batches = new CompletableFuture<?>[(table.size() + BATCH - 1) / BATCH];
+        for (int batch = 0; batch < batches.length; batch++) {
+            final int from = batch * BATCH;
+            final int to = Math.min(from + BATCH, table.size());
+            batches[batch] = after.thenRunAsync(() -> verifyRange(from, to), Pool.EXECUTOR);
+        }
+        this.completion = CompletableFuture.allOf(batches);
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("securejarhandler.backgroundVerify");
+    }
+
+    /**
+     * @return the pool, for other hashing that shouldn't hold up class loading
+     */
+    static Executor executor() {
+        return Pool.EXECUTOR;
+    }
+
+    static BackgroundVerification start(final EntryStatusTable table, final IntConsumer verifier, final CompletableFuture<Void> after) {
+        return new BackgroundVerification(table, verifier, after);
+    }
+
+    private void verifyRange(final int from, final int to) {
+        for (int id = from; id < to; id++) {
+            if (!table.isKnown(id)) {
+                var pending = new CompletableFuture<Void>();
+                inFlight.put(id, pending);
+                try {
+                    // A class load may have got there while we registered
+                    if (!table.isKnown(id)) verifier.accept(id);
+                } catch (RuntimeException e) {
+                    // Unreadable entries are left for the class load to verify, and fail, itself
+                } finally {
+                    inFlight.remove(id);
+                    pending.complete(null);
+                }
+            }
+            processed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for the pool to finish the entry, if it is hashing it right now.
+     */
+    void join(final int id) {
+        var pending = inFlight.get(id);
+        if (pending != null) pending.join();
+    }
+
+    CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    /**
+     * @return how many of the manifest's entries the pool has dealt with, whether it verified them or found them known
+     */
+    int processed() {
+        return processed.get();
+    }
+}
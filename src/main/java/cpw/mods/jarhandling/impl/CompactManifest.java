@@ -0,0 +1,148 @@
+package cpw.mods.jarhandling.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+
+/**
+ * The manifest of a signed jar, without a map of attributes per entry. Signed jars list a section of digests for every
+ * entry, tens of thousands of them in large jars, and {@link EntryStatusTable} already holds those digests decoded
+ * and packed. This keeps the main attributes and any section with more than digests in it, such as package sections,
+ * and rebuilds digest sections from the table when asked for one.
+ * <p>
+ * {@link #getMainAttributes()} and {@link #getAttributes(String)}, which is all class loading uses, never build more
+ * than the one section, and keep each section they build, so asking again is a lookup and the same attributes come
+ * back, changes and all, as with any manifest. {@link #getEntries()} builds the full map the first time it is called,
+ * from the sections built so far and the table, and from then on that map is the manifest.
+ */
+class CompactManifest extends Manifest {
+    private final Attributes main;
+    // The sections the table can't rebuild, and those built so far
+    private final Map<String, Attributes> sections;
+    private final EntryStatusTable table;
+    private volatile Map<String, Attributes> entries;
+
+    private CompactManifest(final Attributes main, final Map<String, Attributes> sections, final EntryStatusTable table) {
+        this.main = main;
+        this.sections = sections;
+        this.table = table;
+    }
+
+    /**
+     * Keeps the sections of {@code manifest} the table can't rebuild exactly as they are, and leaves the rest to it.
+     */
+    static CompactManifest of(final Manifest manifest, final EntryStatusTable table) {
+        final var sections = new ConcurrentHashMap<String, Attributes>();
+        for (var section : manifest.getEntries().entrySet()) {
+            final int id = table.id(section.getKey());
+            if (id < 0 || !sameText(table.attributes(id), section.getValue())) {
+                sections.put(section.getKey(), section.getValue());
+            }
+        }
+        return new CompactManifest(manifest.getMainAttributes(), sections, table);
+    }
+
+    /*
+     * Attributes.Name ignores case, but the names should come back as they were written
+     */
+    private static boolean sameText(final Attributes rebuilt, final Attributes original) {
+        return rebuilt != null && rebuilt.equals(original) && names(rebuilt).equals(names(original));
+    }
+
+    private static Set<String> names(final Attributes attributes) {
+        return attributes.keySet().stream().map(Object::toString).collect(Collectors.toSet());
+    }
+
+    @Override
+    public Attributes getMainAttributes() {
+        return main;
+    }
+
+    @Override
+    public Map<String, Attributes> getEntries() {
+        var entries = this.entries;
+        if (entries == null) {
+            synchronized (this) {
+                entries = this.entries;
+                if (entries == null) {
+                    entries = buildEntries();
+                    this.entries = entries;
+                }
+            }
+        }
+        return entries;
+    }
+
+    private Map<String, Attributes> buildEntries() {
+        final var entries = new HashMap<>(sections);
+        for (int id = 0; id < table.size(); id++) {
+            final var name = table.name(id);
+            if (!entries.containsKey(name)) entries.put(name, table.attributes(id));
+        }
+        return entries;
+    }
+
+    @Override
+    public Attributes getAttributes(final String name) {
+        var entries = this.entries;
+        if (entries != null) return entries.get(name);
+        final var section = sections.get(name);
+        if (section != null) return section;
+        final int id = table.id(name);
+        if (id < 0) return null;
+        // Kept under the lock that builds the full map, so a section handed out is always the one it holds
+        synchronized (this) {
+            entries = this.entries;
+            if (entries != null) return entries.get(name);
+            return sections.computeIfAbsent(name, k -> table.attributes(id));
+        }
+    }
+
+    @Override
+    public void clear() {
+        main.clear();
+        getEntries().clear();
+    }
+
+    @Override
+    public void write(final OutputStream out) throws IOException {
+        // Written from a copy, so writing doesn't keep the full map around
+        final var copy = new Manifest();
+        copy.getMainAttributes().putAll(main);
+        final var entries = this.entries;
+        copy.getEntries().putAll(entries != null ? entries : buildEntries());
+        copy.write(out);
+    }
+
+    @Override
+    public void read(final InputStream is) throws IOException {
+        final var read = new Manifest(is);
+        main.putAll(read.getMainAttributes());
+        final var entries = getEntries();
+        for (var section : read.getEntries().entrySet()) {
+            entries.computeIfAbsent(section.getKey(), name -> new Attributes()).putAll(section.getValue());
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof Manifest other && main.equals(other.getMainAttributes()) && getEntries().equals(other.getEntries());
+    }
+
+    @Override
+    public int hashCode() {
+        return main.hashCode() + getEntries().hashCode();
+    }
+
+    @Override
+    public Object clone() {
+        return new Manifest(this);
+    }
+}
@@ -0,0 +1,172 @@
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.niofs.union.UnionFileSystem;
+import cpw.mods.niofs.union.UnionPath;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Works out the identities {@link cpw.mods.jarhandling.SecureJar#contentFingerprint()} and
+ * {@link cpw.mods.jarhandling.SecureJar#contentHash()} hand out. Both are SHA-256 based and hex encoded.
+ */
+class ContentFingerprint {
+    private static final int BATCH = 64;
+    private static final int BUFFER = 1 << 16;
+
+    /**
+     * Hashes the name, size and CRC of every file the jar shows, then its manifest. Archive entries come straight
+     * from the central directory, so nothing is decompressed.
+     */
+    static String fingerprint(final UnionFileSystem filesystem, final Manifest manifest) {
+        try {
+            return fingerprint(filesystem.summarizeFiles(), manifest);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * As {@link #fingerprint(UnionFileSystem, Manifest)}, for a jar only known by its root. Files outside a union
+     * filesystem are read to work out their CRC.
+     */
+    static String fingerprint(final Path root, final Manifest manifest) {
+        if (root.getFileSystem() instanceof UnionFileSystem union) return fingerprint(union, manifest);
+        try {
+            final var summaries = new TreeMap<String, UnionFileSystem.FileSummary>();
+            for (var name : listFiles(root)) {
+                final var crc = new CRC32();
+                long size = 0;
+                try (var is = Files.newInputStream(root.resolve(name))) {
+                    final var buffer = new byte[BUFFER];
+                    for (int read; (read = is.read(buffer)) != -1; size += read) {
+                        crc.update(buffer, 0, read);
+                    }
+                }
+                summaries.put(name, new UnionFileSystem.FileSummary(size, crc.getValue()));
+            }
+            return fingerprint(summaries, manifest);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String fingerprint(final SortedMap<String, UnionFileSystem.FileSummary> summaries, final Manifest manifest) throws IOException {
+        final var digest = sha256();
+        try (var out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+            for (var file : summaries.entrySet()) {
+                out.writeUTF(file.getKey());
+                out.writeLong(file.getValue().size());
+                out.writeLong(file.getValue().crc());
+            }
+            // Jars without a manifest of their own get a default one, which is part of what they are
+            if (manifest != null) manifest.write(out);
+        }
+        return SecureJarVerifier.toHexString(digest.digest());
+    }
+
+    /**
+     * Hashes the content of every file the jar shows, batches of files at a time on {@code executor}, then hashes
+     * each file's name and digest in name order. Unlike a plain hash of the archive this doesn't depend on how the
+     * archive is laid out or compressed.
+     */
+    static CompletableFuture<String> hash(final UnionFileSystem filesystem, final Executor executor) {
+        final List<String> names;
+        try {
+            names = filesystem.listFiles().stream().sorted().toList();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return hash(names, name -> filesystem.newInputStream((UnionPath) filesystem.getPath(name)), executor);
+    }
+
+    /**
+     * As {@link #hash(UnionFileSystem, Executor)}, for a jar only known by its root.
+     */
+    static CompletableFuture<String> hash(final Path root, final Executor executor) {
+        if (root.getFileSystem() instanceof UnionFileSystem union) return hash(union, executor);
+        final List<String> names;
+        try {
+            names = listFiles(root);
+        } catch (IOException | UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return hash(names, name -> Files.newInputStream(root.resolve(name)), executor);
+    }
+
+    private interface Opener {
+        InputStream open(String name) throws IOException;
+    }
+
+    private static CompletableFuture<String> hash(final List<String> names, final Opener opener, final Executor executor) {
+        final var batches = new ArrayList<CompletableFuture<byte[][]>>();
+        for (int from = 0; from < names.size(); from += BATCH) {
+            final var batch = names.subList(from, Math.min(from + BATCH, names.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> hashFiles(opener, batch), executor));
+        }
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            final var digest = sha256();
+            int name = 0;
+            for (var batch : batches) {
+                for (var fileDigest : batch.join()) {
+                    digest.update(names.get(name++).getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(fileDigest);
+                }
+            }
+            return SecureJarVerifier.toHexString(digest.digest());
+        });
+    }
+
+    private static byte[][] hashFiles(final Opener opener, final List<String> names) {
+        final var digest = sha256();
+        final var buffer = new byte[BUFFER];
+        final var digests = new byte[names.size()][];
+        for (int i = 0; i < digests.length; i++) {
+            try (var is = opener.open(names.get(i))) {
+                for (int read; (read = is.read(buffer)) != -1; ) {
+                    digest.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            digests[i] = digest.digest();
+        }
+        return digests;
+    }
+
+    /**
+     * @return the names of the regular files under {@code root}, relative to it and in name order
+     */
+    private static List<String> listFiles(final Path root) throws IOException {
+        try (Stream<Path> files = Files.find(root, Integer.MAX_VALUE, (path, attributes) -> attributes.isRegularFile())) {
+            return files.map(path -> root.relativize(path).toString().replace('\\', '/')).sorted().toList();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
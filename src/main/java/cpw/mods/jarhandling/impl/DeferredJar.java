@@ -0,0 +1,177 @@
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.util.Lazy;
+
+import java.io.InputStream;
+import java.lang.module.ModuleDescriptor;
+import java.net.URI;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * A jar that answers what a {@link cpw.mods.cl.JarModuleFinder} asks of it from the metadata cache, and only builds
+ * the real {@link Jar}, under the filesystem key reserved for it, once anything touches its content.
+ * See {@link Jar#deferred}.
+ */
+class DeferredJar implements SecureJar {
+    private final MetadataCache.Entry cached;
+    private final URI uri;
+    private final Path primaryPath;
+    private final Lazy<Jar> jar;
+    private final Lazy<ModuleDescriptor> descriptor;
+    private final DeferredModuleDataProvider moduleDataProvider = new DeferredModuleDataProvider(this);
+
+    DeferredJar(final MetadataCache.Entry cached, final Path path, final URI uri, final Supplier<Jar> jar) {
+        this.cached = cached;
+        this.uri = uri;
+        this.primaryPath = path.toAbsolutePath().normalize();
+        this.jar = Lazy.of(jar);
+        this.descriptor = Lazy.of(() -> cached.metadata().descriptor());
+    }
+
+    /**
+     * @return the jar, built now if nothing needed it before
+     */
+    Jar jar() {
+        return jar.get();
+    }
+
+    /**
+     * @return whether the real jar has been built
+     */
+    boolean isInitialized() {
+        return jar.orElse(null) != null;
+    }
+
+    @Override
+    public ModuleDataProvider moduleDataProvider() {
+        return moduleDataProvider;
+    }
+
+    @Override
+    public Path getPrimaryPath() {
+        return primaryPath;
+    }
+
+    @Override
+    public CodeSigner[] getManifestSigners() {
+        return jar().getManifestSigners();
+    }
+
+    @Override
+    public Status verifyPath(final Path path) {
+        return jar().verifyPath(path);
+    }
+
+    @Override
+    public Status getFileStatus(final String name) {
+        return jar().getFileStatus(name);
+    }
+
+    @Override
+    public Attributes getTrustedManifestEntries(final String name) {
+        return jar().getTrustedManifestEntries(name);
+    }
+
+    @Override
+    public boolean hasSecurityData() {
+        return jar().hasSecurityData();
+    }
+
+    @Override
+    public CompletableFuture<Void> verificationComplete() {
+        return jar().verificationComplete();
+    }
+
+    @Override
+    public int verificationProgress() {
+        // Nothing has been verified before the jar exists, and asking shouldn't build it
+        var built = jar.orElse(null);
+        return built == null ? 0 : built.verificationProgress();
+    }
+
+    @Override
+    public String contentFingerprint() {
+        return jar().contentFingerprint();
+    }
+
+    @Override
+    public CompletableFuture<String> contentHash() {
+        return jar().contentHash();
+    }
+
+    @Override
+    public Set<String> getPackages() {
+        return cached.packages();
+    }
+
+    @Override
+    public List<Provider> getProviders() {
+        return cached.providers();
+    }
+
+    @Override
+    public String name() {
+        return cached.metadata().name();
+    }
+
+    @Override
+    public Path getPath(final String first, final String... rest) {
+        return jar().getPath(first, rest);
+    }
+
+    @Override
+    public Path getRootPath() {
+        return jar().getRootPath();
+    }
+
+    @Override
+    public String toString() {
+        return "Jar[" + uri + "]";
+    }
+
+    private record DeferredModuleDataProvider(DeferredJar jar) implements ModuleDataProvider {
+        @Override
+        public String name() {
+            return jar.name();
+        }
+
+        @Override
+        public ModuleDescriptor descriptor() {
+            return jar.descriptor.get();
+        }
+
+        @Override
+        public URI uri() {
+            return jar.uri;
+        }
+
+        @Override
+        public Optional<URI> findFile(final String name) {
+            return jar.jar().findFile(name);
+        }
+
+        @Override
+        public Optional<InputStream> open(final String name) {
+            return jar.jar().open(name);
+        }
+
+        @Override
+        public Manifest getManifest() {
+            return jar.jar().getManifest();
+        }
+
+        @Override
+        public CodeSigner[] verifyAndGetSigners(final String cname, final byte[] bytes) {
+            return jar.jar().verifyAndGetSigners(cname, bytes);
+        }
+    }
+}
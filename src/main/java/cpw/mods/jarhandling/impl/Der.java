@@ -0,0 +1,118 @@
+package cpw.mods.jarhandling.impl;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Just enough of a DER reader to take signature block files apart. Values are views into the original bytes, nothing
+ * is copied until asked for. Malformed input throws a {@link SecurityException}, as it would from the JDK's verifier.
+ */
+record Der(byte[] data, int offset, int contentOffset, int end) {
+    static final int INTEGER = 0x02;
+    static final int OCTET_STRING = 0x04;
+    static final int OID = 0x06;
+    static final int SEQUENCE = 0x30;
+    static final int SET = 0x31;
+    static final int CONTEXT_0 = 0xA0;
+    static final int CONTEXT_1 = 0xA1;
+
+    static Der parse(final byte[] data) {
+        var der = parse(data, 0, data.length);
+        if (der.end() != data.length)
+            throw new SecurityException("Trailing data after DER value");
+        return der;
+    }
+
+    private static Der parse(final byte[] data, final int offset, final int limit) {
+        if (limit - offset < 2)
+            throw new SecurityException("Truncated DER value");
+        if ((data[offset] & 0x1F) == 0x1F)
+            throw new SecurityException("Unsupported DER tag");
+        int pos = offset + 1;
+        int length = data[pos++] & 0xFF;
+        if (length == 0x80)
+            throw new SecurityException("Indefinite length encoding is not DER");
+        if (length > 0x80) {
+            final int bytes = length & 0x7F;
+            if (bytes > 4 || pos + bytes > limit)
+                throw new SecurityException("Bad DER length");
+            length = 0;
+            for (int i = 0; i < bytes; i++) length = (length << 8) | (data[pos++] & 0xFF);
+        }
+        if (length < 0 || length > limit - pos)
+            throw new SecurityException("Truncated DER value");
+        return new Der(data, offset, pos, pos + length);
+    }
+
+    int tag() {
+        return data[offset] & 0xFF;
+    }
+
+    int length() {
+        return end - contentOffset;
+    }
+
+    /**
+     * @return the values this constructed value is made of
+     */
+    List<Der> children() {
+        var children = new ArrayList<Der>();
+        for (int pos = contentOffset; pos < end; ) {
+            var child = parse(data, pos, end);
+            children.add(child);
+            pos = child.end();
+        }
+        return children;
+    }
+
+    Der child(final int index) {
+        var children = children();
+        if (index >= children.size())
+            throw new SecurityException("Missing DER value");
+        return children.get(index);
+    }
+
+    /**
+     * @return the tag, length and content of this value
+     */
+    byte[] encoded() {
+        return Arrays.copyOfRange(data, offset, end);
+    }
+
+    byte[] content() {
+        return Arrays.copyOfRange(data, contentOffset, end);
+    }
+
+    Der expect(final int tag) {
+        if (tag() != tag)
+            throw new SecurityException("Unexpected DER tag " + Integer.toHexString(tag()) + ", expected " + Integer.toHexString(tag));
+        return this;
+    }
+
+    BigInteger integer() {
+        expect(INTEGER);
+        return new BigInteger(content());
+    }
+
+    String oid() {
+        expect(OID);
+        var oid = new StringBuilder();
+        long value = 0;
+        boolean first = true;
+        for (int pos = contentOffset; pos < end; pos++) {
+            value = (value << 7) | (data[pos] & 0x7F);
+            if ((data[pos] & 0x80) != 0) continue;
+            if (first) {
+                final long arc = Math.min(value / 40, 2);
+                oid.append(arc).append('.').append(value - arc * 40);
+                first = false;
+            } else {
+                oid.append('.').append(value);
+            }
+            value = 0;
+        }
+        return oid.toString();
+    }
+}
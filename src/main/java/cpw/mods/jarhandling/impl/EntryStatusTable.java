@@ -0,0 +1,290 @@
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.jarhandling.SecureJar.Status;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.security.CodeSigner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Verification state of the entries listed in a signed jar's manifest, kept compact for jars with tens of thousands
+ * of entries. An entry's id is its position in the sorted manifest section names, and it costs two bytes: its
+ * state, and the index of its signers among the jar's distinct signer sets, of which there are only ever a handful.
+ * A jar with more signer sets than fit a byte is still valid, its indices take an int instead.
+ * States are only ever set once, so verification needs no locking.
+ * <p>
+ * The digests each section lists are decoded once, up front, so verifying an entry doesn't have to walk and decode
+ * its manifest attributes again. A jar only ever uses a couple of digest algorithms, an entry's mask says which of
+ * them it lists, and its decoded digests are stored back to back in the jar's algorithm order. Digests of signed
+ * entries that {@code jdk.jar.disabledAlgorithms} disables are left out, as {@link java.util.jar.JarFile} ignores them,
+ * so an entry with nothing else is unsigned.
+ */
+class EntryStatusTable {
+    private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final byte UNKNOWN = 0;
+    private static final byte INVALID = 1;
+    private static final byte SIGNED = 2;
+    private static final byte UNSIGNED = 3;
+    private static final String DIGEST_SUFFIX = "-digest";
+    private static final int MAX_ALGORITHMS = 7;
+    /**
+     * The mask of an entry whose digests can't be decoded, or use more algorithms than fit a mask. It never verifies.
+     */
+    static final int MALFORMED = 0x80;
+
+    private final String[] names;
+    private final byte[] states;
+    // One of these is null, the indices only take an int when there are more signer sets than fit a byte
+    private final byte[] signerIds;
+    private final int[] wideSignerIds;
+    private final CodeSigner[][] signerSets;
+    private final String[] algorithms;
+    private final String[] attributeNames;
+    private final int[] digestLengths;
+    private final byte[] algorithmMasks;
+    private final byte[][] digests;
+
+    /**
+     * @param manifest the jar's manifest
+     * @param pending the signers of each section, as read from the signature files
+     */
+    EntryStatusTable(final Manifest manifest, final Map<String, CodeSigner[]> pending) {
+        this.names = manifest.getEntries().keySet().toArray(String[]::new);
+        Arrays.sort(this.names);
+        this.states = new byte[names.length];
+        this.algorithmMasks = new byte[names.length];
+        this.digests = new byte[names.length][];
+        var algos = new ArrayList<String>();
+        var attributes = new ArrayList<String>();
+        var lengths = new ArrayList<Integer>();
+        var constraints = JarConstraints.current();
+        // Entries share a handful of signer arrays, each only needs checking once per algorithm
+        var permitted = new IdentityHashMap<CodeSigner[], Map<String, Boolean>>();
+        for (int id = 0; id < names.length; id++) {
+            var signers = pending.get(names[id]);
+            decodeDigests(id, manifest.getAttributes(names[id]), algos, attributes, lengths, signers == null ? algorithm -> true :
+                    algorithm -> permitted.computeIfAbsent(signers, k -> new HashMap<>())
+                            .computeIfAbsent(algorithm, k -> constraints.permits(k, JarConstraints.date(signers))));
+        }
+        this.algorithms = algos.toArray(String[]::new);
+        this.attributeNames = attributes.toArray(String[]::new);
+        this.digestLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+        var sets = new ArrayList<CodeSigner[]>();
+        sets.add(null);
+        var setIds = new HashMap<List<CodeSigner>, Integer>();
+        var ids = new int[names.length];
+        for (int id = 0; id < names.length; id++) {
+            var signers = pending.get(names[id]);
+            if (signers == null) continue;
+            ids[id] = setIds.computeIfAbsent(Arrays.asList(signers), k -> {
+                sets.add(signers);
+                return sets.size() - 1;
+            });
+        }
+        this.signerSets = sets.toArray(CodeSigner[][]::new);
+        if (sets.size() <= 0x100) {
+            this.signerIds = new byte[names.length];
+            for (int id = 0; id < names.length; id++) signerIds[id] = (byte) ids[id];
+            this.wideSignerIds = null;
+        } else {
+            this.signerIds = null;
+            this.wideSignerIds = ids;
+        }
+    }
+
+    private void decodeDigests(final int id, final Map<Object, Object> attributes, final List<String> algos, final List<String> attributeNames,
+                               final List<Integer> lengths, final Predicate<String> permitted) {
+        var decoded = new byte[MAX_ALGORITHMS][];
+        int mask = 0;
+        for (var entry : attributes.entrySet()) {
+            var key = entry.getKey().toString().toLowerCase(Locale.ENGLISH);
+            if (!key.endsWith(DIGEST_SUFFIX)) continue;
+            var algorithm = key.substring(0, key.length() - DIGEST_SUFFIX.length());
+            if (!permitted.test(algorithm)) continue;
+            int index = algos.indexOf(algorithm);
+            if (index < 0) {
+                index = algos.size();
+                algos.add(algorithm);
+                attributeNames.add(entry.getKey().toString());
+                lengths.add(-1);
+            }
+            if (index >= MAX_ALGORITHMS) {
+                algorithmMasks[id] = (byte) MALFORMED;
+                return;
+            }
+            try {
+                decoded[index] = Base64.getDecoder().decode((String) entry.getValue());
+            } catch (IllegalArgumentException e) {
+                algorithmMasks[id] = (byte) MALFORMED;
+                return;
+            }
+            if (lengths.get(index) < 0) lengths.set(index, decoded[index].length);
+            mask |= 1 << index;
+        }
+        if (mask == 0) return;
+        int length = 0;
+        for (var digest : decoded) {
+            if (digest != null) length += digest.length;
+        }
+        var packed = new byte[length];
+        int offset = 0;
+        for (var digest : decoded) {
+            if (digest == null) continue;
+            System.arraycopy(digest, 0, packed, offset, digest.length);
+            offset += digest.length;
+        }
+        algorithmMasks[id] = (byte) mask;
+        digests[id] = packed;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(final int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the lower case names of the digest algorithms the manifest uses, indexed by mask bit
+     */
+    String[] algorithms() {
+        return algorithms;
+    }
+
+    /**
+     * @return which of the {@link #algorithms()} the entry lists a digest for, 0 for none, or {@link #MALFORMED}
+     */
+    int algorithmMask(final int id) {
+        return algorithmMasks[id] & 0xFF;
+    }
+
+    /**
+     * @return the entry's expected digests, back to back in algorithm order
+     */
+    byte[] digests(final int id) {
+        return digests[id];
+    }
+
+    /**
+     * Rebuilds the entry's manifest section from its decoded digests, as far as that is possible. The result only
+     * matches the manifest for sections that list nothing but digests, in canonical Base64, under the attribute names
+     * the jar first used for each algorithm. Callers check it against the original before relying on it.
+     *
+     * @return the section, or null if its digests can't be told apart
+     */
+    Attributes attributes(final int id) {
+        final int mask = algorithmMask(id);
+        if (mask == 0 || mask == MALFORMED) return null;
+        final var packed = digests[id];
+        final var attributes = new Attributes(Integer.bitCount(mask));
+        int offset = 0;
+        for (int index = 0; index < algorithms.length; index++) {
+            if ((mask & (1 << index)) == 0) continue;
+            final int length = digestLengths[index];
+            if (length < 0 || offset + length > packed.length) return null;
+            attributes.putValue(attributeNames[index], Base64.getEncoder().encodeToString(Arrays.copyOfRange(packed, offset, offset + length)));
+            offset += length;
+        }
+        return offset == packed.length ? attributes : null;
+    }
+
+    /**
+     * @return the entry's id, or -1 if the manifest has no section for it
+     */
+    int id(final String name) {
+        final int id = Arrays.binarySearch(names, name);
+        return id < 0 ? -1 : id;
+    }
+
+    /**
+     * @return the signers of the entry's manifest section, whether or not the entry has been verified
+     */
+    CodeSigner[] pendingSigners(final int id) {
+        return signerSets[signerIds != null ? signerIds[id] & 0xFF : wideSignerIds[id]];
+    }
+
+    /**
+     * Records the outcome of verifying an entry, unless another thread already did.
+     *
+     * @param signers the signers the verifier reported, null if the content didn't match
+     * @param valid whether the content matched the manifest's digests
+     */
+    void record(final int id, final boolean valid, final CodeSigner[] signers) {
+        final byte state = !valid ? INVALID : signers != null ? SIGNED : UNSIGNED;
+        STATES.compareAndSet(states, id, UNKNOWN, state);
+    }
+
+    /**
+     * Takes over states recorded earlier for the same manifest and signers, such as cached ones, leaving states already
+     * recorded here alone.
+     */
+    void restore(final byte[] recorded) {
+        for (int id = 0; id < recorded.length; id++) {
+            if (recorded[id] >= INVALID && recorded[id] <= UNSIGNED)
+                STATES.compareAndSet(states, id, UNKNOWN, recorded[id]);
+        }
+    }
+
+    byte[] snapshotStates() {
+        var snapshot = new byte[states.length];
+        for (int id = 0; id < states.length; id++) {
+            snapshot[id] = (byte) STATES.getAcquire(states, id);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return which of the jar's signer sets signed each entry, by id, a byte each or a big endian int each where
+     * there are more sets than fit a byte. Not to be modified.
+     */
+    byte[] signerIds() {
+        if (signerIds != null) return signerIds;
+        var encoded = ByteBuffer.allocate(wideSignerIds.length * Integer.BYTES);
+        encoded.asIntBuffer().put(wideSignerIds);
+        return encoded.array();
+    }
+
+    /**
+     * Records every entry as verified, for archives whose content is known to be intact. Each gets the state hashing it
+     * would give: invalid if its digests are malformed, unsigned if it has none that may be used, otherwise signed by
+     * its pending signers.
+     */
+    void trustAll() {
+        for (int id = 0; id < names.length; id++) {
+            final int mask = algorithmMask(id);
+            record(id, mask != MALFORMED, mask == 0 || mask == MALFORMED ? null : pendingSigners(id));
+        }
+    }
+
+    boolean isKnown(final int id) {
+        return (byte) STATES.getAcquire(states, id) != UNKNOWN;
+    }
+
+    Status status(final int id) {
+        return switch ((byte) STATES.getAcquire(states, id)) {
+            case INVALID -> Status.INVALID;
+            case SIGNED, UNSIGNED -> Status.VERIFIED;
+            default -> Status.NONE;
+        };
+    }
+
+    /**
+     * @return the signers the entry was verified with, or null if it isn't verified or nobody signed it
+     */
+    CodeSigner[] signers(final int id) {
+        return (byte) STATES.getAcquire(states, id) == SIGNED ? pendingSigners(id) : null;
+    }
+}
@@ -4,51 +4,97 @@ import cpw.mods.jarhandling.JarMetadata;
 import cpw.mods.jarhandling.SecureJar;
 import cpw.mods.niofs.union.UnionFileSystem;
 import cpw.mods.niofs.union.UnionFileSystemProvider;
-import cpw.mods.util.LambdaExceptionUtils;
+import cpw.mods.niofs.union.UnionPath;
+import cpw.mods.util.Lazy;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.lang.module.ModuleDescriptor;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.spi.FileSystemProvider;
 import java.security.CodeSigner;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
-import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import java.util.zip.ZipInputStream;
 
 import static java.util.stream.Collectors.*;
 
 public class Jar implements SecureJar {
     private static final CodeSigner[] EMPTY_CODESIGNERS = new CodeSigner[0];
+    private static final String SERVICES = "META-INF/services/";
+    private static final String VERSIONS = "META-INF/versions/";
     private static final UnionFileSystemProvider UFSP = (UnionFileSystemProvider) FileSystemProvider.installedProviders().stream().filter(fsp->fsp.getScheme().equals("union")).findFirst().orElseThrow(()->new IllegalStateException("Couldn't find UnionFileSystemProvider"));
     private final Manifest manifest;
-    private final Hashtable<String, CodeSigner[]> pendingSigners = new Hashtable<>();
-    private final Hashtable<String, CodeSigner[]> verifiedSigners = new Hashtable<>();
     private final ManifestVerifier verifier = new ManifestVerifier();
-    private final Map<String, StatusData> statusData = new HashMap<>();
+    private final boolean hasSecurityData;
+    private final CodeSigner[] manifestSigners;
+    private final EntryStatusTable entryStatus;
+    // Verified entries without a manifest section, which have no digests and so can't fail verification
+    private final Set<String> verifiedUnlisted = ConcurrentHashMap.newKeySet();
+    private volatile BackgroundVerification background;
+    // Completes once results from the verification cache, if any, are in the entry table
+    private final CompletableFuture<Void> restored;
     private final JarMetadata metadata;
     private final UnionFileSystem filesystem;
     private final boolean isMultiRelease;
-    private final Map<Path, Integer> nameOverrides;
+    private final Map<String, String> versionedNames;
     private final JarModuleDataProvider moduleDataProvider;
-    private Set<String> packages;
-    private List<Provider> providers;
+    private final Set<String> packages;
+    private final Lazy<List<Provider>> providers;
+    private final Lazy<ModuleDescriptor> descriptor;
+    // The default metadata, when it came from the metadata cache
+    private final JarMetadata cachedMetadata;
+    private final Lazy<String> contentFingerprint;
+    private final Lazy<CompletableFuture<String>> contentHash;
 
     public URI getURI() {
         return this.filesystem.getRootDirectories().iterator().next().toUri();
     }
 
     public ModuleDescriptor computeDescriptor() {
-        return metadata.descriptor();
+        return descriptor.get();
+    }
+
+    /**
+     * @return the metadata {@link JarMetadata#from} worked out for this jar on an earlier launch, or null
+     */
+    JarMetadata cachedMetadata() {
+        return cachedMetadata;
+    }
+
+    /**
+     * {@link JarMetadata#from} for the given paths, the metadata function jars get when the caller doesn't bring
+     * one. Only its result is kept in the metadata cache, along with the paths it was worked out from.
+     */
+    record DefaultMetadata(List<Path> paths) implements Function<SecureJar, JarMetadata> {
+        DefaultMetadata(final Path... paths) {
+            this(List.of(paths));
+        }
+
+        @Override
+        public JarMetadata apply(final SecureJar jar) {
+            return JarMetadata.from(jar, paths.toArray(Path[]::new));
+        }
+
+        List<String> names() {
+            return paths.stream().map(Path::toString).toList();
+        }
     }
 
     @Override
@@ -62,26 +108,71 @@ public class Jar implements SecureJar {
     }
 
     public Optional<URI> findFile(final String name) {
-        var rel = filesystem.getPath(name);
-        if (this.nameOverrides.containsKey(rel)) {
-            rel = this.filesystem.getPath("META-INF", "versions", this.nameOverrides.get(rel).toString()).resolve(rel);
-        }
+        var rel = filesystem.getPath(versionedNames.getOrDefault(name, name));
         return Optional.of(this.filesystem.getRoot().resolve(rel)).filter(Files::exists).map(Path::toUri);
     }
 
-    private record StatusData(String name, Status status, CodeSigner[] signers) {
-        static void add(final String name, final Status status, final CodeSigner[] signers, Jar jar) {
-            jar.statusData.put(name, new StatusData(name, status, signers));
+    /**
+     * Opens an entry by name straight through the union filesystem, without building or parsing a URI.
+     * Entries of signed jars are verified as they are read, see {@link #verifying(String, InputStream)}.
+     *
+     * @return the entry's content, or empty if there is no such entry
+     */
+    public Optional<InputStream> open(final String name) {
+        var physical = versionedNames.getOrDefault(name, name);
+        var path = (UnionPath) filesystem.getPath(physical);
+        try {
+            return Optional.of(verifying(physical, filesystem.newInputStream(path)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Wraps a stream over an entry's content so the entry is verified as it is read, recording its status and
+     * signers once the end is reached. Reading to the end of an entry that doesn't match its manifest digests throws
+     * a {@link SecurityException}. Entries with nothing to verify, or that are already verified, get the stream back
+     * as is.
+     */
+    public InputStream verifying(final String name, final InputStream in) {
+        if (!hasSecurityData()) return in;
+        final int id = entryStatus.id(name);
+        if (id < 0) {
+            // Without a manifest section there is nothing to check the content against
+            verifiedUnlisted.add(name);
+            return in;
+        }
+        if (entryStatus.status(id) == Status.VERIFIED) return in;
+        var digests = verifier.digests(entryStatus, id);
+        if (digests == null) {
+            entryStatus.record(id, true, null);
+            return in;
+        }
+        return new VerifyingInputStream(in, name, digests, valid -> entryStatus.record(id, valid, valid ? entryStatus.pendingSigners(id) : null));
+    }
+
     public Jar(final Supplier<Manifest> defaultManifest, final Function<SecureJar, JarMetadata> metadataFunction, final BiPredicate<String, String> pathfilter, final Path... paths) {
+        this(defaultManifest, metadataFunction, pathfilter, null, paths);
+    }
+
+    public Jar(final Supplier<Manifest> defaultManifest, final Function<SecureJar, JarMetadata> metadataFunction, final BiPredicate<String, String> pathfilter, final Pin pin, final Path... paths) {
+        this(defaultManifest, metadataFunction, pathfilter, pin, null, paths);
+    }
+
+    /**
+     * @param fileSystemKey the key reserved for this jar's filesystem, or null to pick a fresh one
+     */
+    @SuppressWarnings("unchecked")
+    Jar(final Supplier<Manifest> defaultManifest, final Function<SecureJar, JarMetadata> metadataFunction, final BiPredicate<String, String> pathfilter, final Pin pin, final String fileSystemKey, final Path... paths) {
         var validPaths = Arrays.stream(paths).filter(Files::exists).toArray(Path[]::new);
         if (validPaths.length == 0)
             throw new UncheckedIOException(new IOException("Invalid paths argument, contained no existing paths: " + Arrays.toString(paths)));
         this.moduleDataProvider = new JarModuleDataProvider(this);
-        this.filesystem = UFSP.newFileSystem(pathfilter, validPaths);
+        this.filesystem = fileSystemKey == null ? UFSP.newFileSystem(pathfilter, validPaths) : UFSP.newFileSystem(fileSystemKey, pathfilter, validPaths);
+        JarSignatures signatures = null;
+        final Manifest parsed;
         try {
             Manifest mantmp = null;
             for (int x = validPaths.length - 1; x >= 0; x--) { // Walk backwards because this is what cpw wanted?
@@ -95,52 +186,214 @@ public class Jar implements SecureJar {
                         }
                     }
                 } else {
-                    try (var jis = new JarInputStream(Files.newInputStream(path))) {
-                        var jv = SecureJarVerifier.getJarVerifier(jis);
-                        if (jv != null) {
-                            while (SecureJarVerifier.isParsingMeta(jv)) {
-                                if (jis.getNextJarEntry() == null) break;
-                            }
-
-                            if (SecureJarVerifier.hasSignatures(jv)) {
-                                pendingSigners.putAll(SecureJarVerifier.getPendingSigners(jv));
-                                var manifestSigners = SecureJarVerifier.getVerifiedSigners(jv).get(JarFile.MANIFEST_NAME);
-                                if (manifestSigners != null) verifiedSigners.put(JarFile.MANIFEST_NAME, manifestSigners);
-                                StatusData.add(JarFile.MANIFEST_NAME, Status.VERIFIED, verifiedSigners.get(JarFile.MANIFEST_NAME), this);
+                    // The central directory takes us straight to the manifest and signature files, wherever they are
+                    var meta = filesystem.readArchiveEntries(path, SecureJarVerifier::isSigningRelated);
+                    if (meta == null)
+                        meta = readArchiveEntries(path);
+                    var manifestName = meta.keySet().stream().filter(JarFile.MANIFEST_NAME::equalsIgnoreCase).findFirst();
+                    if (manifestName.isEmpty())
+                        continue;
+                    var manifestBytes = meta.get(manifestName.get());
+                    if (meta.size() > 1)
+                        signatures = JarSignatures.read(manifestBytes, meta);
+                    mantmp = new Manifest(new ByteArrayInputStream(manifestBytes));
+                    break;
+                }
+            }
+            parsed = mantmp == null ? defaultManifest.get() : mantmp;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.manifestSigners = signatures == null ? null : signatures.manifestSigners();
+        this.hasSecurityData = signatures != null && (!signatures.pending().isEmpty() || this.manifestSigners != null);
+        if (this.hasSecurityData) {
+            // The signature files' own bookkeeping is dropped, all we need is each entry's signers
+            this.entryStatus = new EntryStatusTable(parsed, signatures.pending());
+            // The table holds every entry's digests already, the manifest doesn't need its own copy
+            this.manifest = CompactManifest.of(parsed, this.entryStatus);
+            this.verifiedUnlisted.add(JarFile.MANIFEST_NAME);
+            if (pin != null && validPaths.length == 1 && Files.isRegularFile(validPaths[0]) && matches(pin, validPaths[0], this.manifestSigners)) {
+                this.entryStatus.trustAll();
+                this.restored = CompletableFuture.completedFuture(null);
+            } else if (validPaths.length == 1 && VerificationCache.isEnabled() && Files.isRegularFile(validPaths[0])) {
+                this.restored = VerificationCache.restore(validPaths[0], this.entryStatus);
+            } else {
+                this.restored = CompletableFuture.completedFuture(null);
+            }
+        } else {
+            this.entryStatus = null;
+            this.restored = CompletableFuture.completedFuture(null);
+            this.manifest = parsed;
+        }
+        this.isMultiRelease = Boolean.parseBoolean(getManifest().getMainAttributes().getValue("Multi-Release"));
+        // Only archives seen as they are can be cached, a filter changes what the jar holds
+        final var cacheKey = pathfilter == null && validPaths.length == 1 ? MetadataCache.key(validPaths[0]) : null;
+        final var cached = cacheKey == null ? null : MetadataCache.load(cacheKey);
+        if (cached != null) {
+            this.packages = cached.packages();
+            this.providers = Lazy.of(cached.providers());
+            this.versionedNames = cached.versionedNames();
+        } else {
+            // One pass over every file gives us the packages, the service files and the multi-release versions
+            var packages = new HashSet<String>();
+            var serviceFiles = new ArrayList<String>();
+            var versions = new HashMap<String, Integer>();
+            try {
+                for (var name : filesystem.listFiles()) {
+                    if (name.startsWith("META-INF/")) {
+                        if (name.startsWith(SERVICES)) {
+                            serviceFiles.add(name);
+                        } else if (this.isMultiRelease && name.startsWith(VERSIONS)) {
+                            var slash = name.indexOf('/', VERSIONS.length());
+                            if (slash == -1 || slash == name.length() - 1) continue;
+                            try {
+                                var version = Integer.parseInt(name.substring(VERSIONS.length(), slash));
+                                if (version <= Runtime.version().feature())
+                                    versions.merge(name.substring(slash + 1), version, Integer::max);
+                            } catch (NumberFormatException e) {
+                                // Not a version directory
                             }
                         }
-
-                        if (jis.getManifest() != null) {
-                            mantmp = new Manifest(jis.getManifest());
-                            break;
-                        }
+                    } else if (name.endsWith(".class")) {
+                        var slash = name.lastIndexOf('/');
+                        if (slash > 0) packages.add(name.substring(0, slash).replace('/', '.'));
                     }
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            this.manifest = mantmp == null ? defaultManifest.get() : mantmp;
+            Collections.sort(serviceFiles);
+            this.packages = Collections.unmodifiableSet(packages);
+            var sortedServiceFiles = List.copyOf(serviceFiles);
+            this.providers = Lazy.of(() -> sortedServiceFiles.stream()
+                    .map(name -> Provider.fromPath(filesystem.getPath(name), filesystem.getFilesystemFilter()))
+                    .toList());
+            // Logical name to the entry that serves it on this JDK, so lookups never have to consider versions again
+            this.versionedNames = versions.entrySet().stream()
+                    .collect(toUnmodifiableMap(Map.Entry::getKey, e -> VERSIONS + e.getValue() + '/' + e.getKey()));
+        }
+        final var defaults = metadataFunction instanceof DefaultMetadata defaultMetadata ? defaultMetadata : null;
+        this.cachedMetadata = cached != null && defaults != null ? cached.metadataFor(defaults.names()) : null;
+        this.metadata = this.cachedMetadata != null ? this.cachedMetadata : metadataFunction.apply(this);
+        this.descriptor = Lazy.of(this.metadata::descriptor);
+        // Metadata from another function is the caller's business, the entry keeps what it had
+        if (cacheKey != null && (cached == null || defaults != null && this.cachedMetadata == null))
+            MetadataCache.save(cacheKey, new MetadataCache.Entry(this.packages, this.providers.get(), this.versionedNames,
+                    defaults == null ? List.of() : defaults.names(), defaults == null ? null : this.metadata));
+        this.contentFingerprint = Lazy.of(() -> ContentFingerprint.fingerprint(filesystem, manifest));
+        this.contentHash = Lazy.of(() -> ContentFingerprint.hash(filesystem, BackgroundVerification.executor()));
+    }
+
+    /**
+     * Builds a jar, or hands out the one built before for the same arguments if {@code securejarhandler.jarCache} is
+     * set and the archives are unchanged, see {@link JarCache}.
+     *
+     * @param defaultManifest the manifest of jars without one, or null for an empty one
+     * @param metadataFunction works out the jar's metadata, or null for {@link JarMetadata#from}
+     * @param pathfilter the filter, or null
+     * @param pin the pin, or null
+     */
+    public static SecureJar of(final Supplier<Manifest> defaultManifest, final Function<SecureJar, JarMetadata> metadataFunction, final BiPredicate<String, String> pathfilter, final Pin pin, final Path... paths) {
+        final Supplier<SecureJar> factory = () -> new Jar(defaultManifest == null ? Manifest::new : defaultManifest,
+                metadataFunction == null ? new DefaultMetadata(paths) : metadataFunction, pathfilter, pin, paths).startBackgroundVerification();
+        return JarCache.isEnabled() ? JarCache.get(pathfilter, metadataFunction, defaultManifest, pin, paths, factory) : factory.get();
+    }
+
+    /**
+     * Builds a jar that knows its name, descriptor, packages and services from the metadata cache, and leaves mounting,
+     * reading signatures and scanning for multi-release entries until its content is first needed. Archives the cache
+     * knows nothing about yet are built straight away, which caches them for the next launch.
+     */
+    public static SecureJar deferred(final Pin pin, final Path path) {
+        final var key = MetadataCache.key(path);
+        final var entry = key == null ? null : MetadataCache.load(key);
+        final var metadata = new DefaultMetadata(path);
+        if (entry == null || entry.metadataFor(metadata.names()) == null)
+            return new Jar(Manifest::new, metadata, null, pin, path).startBackgroundVerification();
+        final var fileSystemKey = UFSP.reserveKey(path);
+        return new DeferredJar(entry, path, UFSP.rootUri(fileSystemKey), () -> new Jar(Manifest::new, metadata, null, pin, fileSystemKey, path).startBackgroundVerification());
+    }
+
+    /**
+     * The default {@link SecureJar#contentFingerprint()}, for jars this library didn't build.
+     */
+    public static String contentFingerprint(final SecureJar jar) {
+        return ContentFingerprint.fingerprint(jar.getRootPath(), jar.moduleDataProvider().getManifest());
+    }
+
+    /**
+     * The default {@link SecureJar#contentHash()}, for jars this library didn't build.
+     */
+    public static CompletableFuture<String> contentHash(final SecureJar jar) {
+        return ContentFingerprint.hash(jar.getRootPath(), BackgroundVerification.executor());
+    }
+
+    /**
+     * Hands the manifest's entries to the background pool if {@code securejarhandler.backgroundVerify} is set. Only
+     * called once the jar is fully built, the pool must never see a jar still under construction. Jars built with the
+     * constructors directly verify entries as they are loaded.
+     */
+    Jar startBackgroundVerification() {
+        if (this.hasSecurityData && this.background == null && BackgroundVerification.isEnabled()) {
+            // Entries the verification cache has don't need hashing again, so the pool waits for them
+            this.background = BackgroundVerification.start(this.entryStatus, this::verifyListed, this.restored);
+            this.background.completion().thenRun(() -> VerificationCache.save(this.entryStatus));
+        }
+        return this;
+    }
+
+    /*
+     * Whether the archive and its signers are the ones pinned, hashing the archive only if the signers match
+     */
+    private static boolean matches(final Pin pin, final Path archive, final CodeSigner[] signers) {
+        if (signers == null) return false;
+        try {
+            var fingerprints = new HashSet<String>();
+            for (var signer : signers) {
+                var certificate = signer.getSignerCertPath().getCertificates().get(0);
+                fingerprints.add(SecureJarVerifier.toHexString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded())));
+            }
+            var pinned = pin.signers().stream().map(s -> s.toLowerCase(Locale.ENGLISH)).collect(toSet());
+            if (!fingerprints.equals(pinned)) return false;
+
+            return sha256(archive).equalsIgnoreCase(pin.sha256());
+        } catch (GeneralSecurityException e) {
+            return false;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        this.isMultiRelease = Boolean.parseBoolean(getManifest().getMainAttributes().getValue("Multi-Release"));
-        if (this.isMultiRelease) {
-            var vers = filesystem.getRoot().resolve("META-INF/versions");
-            try (var walk = Files.walk(vers)){
-                var allnames = walk.filter(p1 ->!p1.isAbsolute())
-                        .filter(path1 -> !Files.isDirectory(path1))
-                        .map(p1 -> p1.subpath(2, p1.getNameCount()))
-                        .collect(groupingBy(p->p.subpath(1, p.getNameCount()),
-                                mapping(p->Integer.parseInt(p.getName(0).toString()), toUnmodifiableList())));
-                this.nameOverrides = allnames.entrySet().stream()
-                        .map(e->Map.entry(e.getKey(), e.getValue().stream().reduce(Integer::max).orElse(8)))
-                        .filter(e-> e.getValue() < Runtime.version().feature())
-                        .collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
-            } catch (IOException ioe) {
-                throw new UncheckedIOException(ioe);
+    }
+
+    /**
+     * @return the hex SHA-256 of the whole archive file, as pins give it
+     */
+    static String sha256(final Path archive) throws IOException {
+        try {
+            var sha256 = MessageDigest.getInstance("SHA-256");
+            try (var is = Files.newInputStream(archive)) {
+                var buffer = new byte[1 << 16];
+                for (int read = is.read(buffer); read != -1; read = is.read(buffer)) {
+                    sha256.update(buffer, 0, read);
+                }
+            }
+            return SecureJarVerifier.toHexString(sha256.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Streams through an archive the union filesystem doesn't index for its manifest and signature files
+     */
+    private static Map<String, byte[]> readArchiveEntries(final Path path) throws IOException {
+        var meta = new TreeMap<String, byte[]>();
+        try (var zis = new ZipInputStream(Files.newInputStream(path))) {
+            for (var entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                if (!entry.isDirectory() && SecureJarVerifier.isSigningRelated(entry.getName()))
+                    meta.put(entry.getName(), zis.readAllBytes());
             }
-        } else {
-            this.nameOverrides = Map.of();
         }
-        this.metadata = metadataFunction.apply(this);
+        return meta;
     }
 
     public Manifest getManifest() {
@@ -149,52 +402,114 @@ public class Jar implements SecureJar {
 
     @Override
     public CodeSigner[] getManifestSigners() {
-        return getData(JarFile.MANIFEST_NAME).map(r->r.signers).orElse(null);
+        return hasSecurityData ? manifestSigners : null;
     }
 
-    public synchronized CodeSigner[] verifyAndGetSigners(final String name, final byte[] bytes) {
+    public CodeSigner[] verifyAndGetSigners(final String name, final byte[] bytes) {
         if (!hasSecurityData()) return null;
-        if (statusData.containsKey(name)) return statusData.get(name).signers;
+        final int id = entryStatus.id(name);
+        if (id < 0) {
+            // Without a manifest section there is nothing to check the content against
+            verifiedUnlisted.add(name);
+            return name.equals(JarFile.MANIFEST_NAME) ? manifestSigners : null;
+        }
+        if (entryStatus.isKnown(id)) return entryStatus.signers(id);
+        if (background != null) {
+            background.join(id);
+            if (entryStatus.isKnown(id)) return entryStatus.signers(id);
+        }
+        verifyListed(id, bytes);
+        return entryStatus.signers(id);
+    }
 
-        var signers = verifier.verify(this.manifest, pendingSigners, verifiedSigners, name, bytes);
-        if (signers == null) {
-            StatusData.add(name, Status.INVALID, null, this);
-            return null;
-        } else {
-            var ret = signers.orElse(null);
-            StatusData.add(name, Status.VERIFIED, ret, this);
-            return ret;
+    private void verifyListed(final int id, final byte[] bytes) {
+        // Entries verify in parallel. Should two threads race on the same entry they compute the same result,
+        // and the first one recorded wins.
+        var signers = verifier.verify(entryStatus, id, bytes);
+        entryStatus.record(id, signers != null, signers == null ? null : signers.orElse(null));
+    }
+
+    /*
+     * Reads a manifest listed entry and verifies it, for background verification
+     */
+    private void verifyListed(final int id) {
+        final byte[] bytes;
+        try (var is = filesystem.newInputStream((UnionPath) filesystem.getPath(entryStatus.name(id)))) {
+            bytes = is.readAllBytes();
+        } catch (NoSuchFileException e) {
+            // Listed in the manifest, but not in the jar
+            return;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        verifyListed(id, bytes);
+    }
+
+    @Override
+    public CompletableFuture<Void> verificationComplete() {
+        return background == null ? restored.copy() : background.completion().copy();
+    }
+
+    @Override
+    public int verificationProgress() {
+        return background == null ? SecureJar.super.verificationProgress() : background.processed();
+    }
+
+    @Override
+    public String contentFingerprint() {
+        return contentFingerprint.get();
+    }
+
+    @Override
+    public CompletableFuture<String> contentHash() {
+        return contentHash.get();
+    }
+
+    private boolean isVerified(final String name) {
+        final int id = entryStatus.id(name);
+        return id < 0 ? verifiedUnlisted.contains(name) : entryStatus.isKnown(id);
+    }
+
+    /*
+     * The signers an entry was verified with, null if it hasn't been verified or nobody signed it
+     */
+    private CodeSigner[] verifiedSigners(final String name) {
+        final int id = entryStatus.id(name);
+        if (id >= 0) return entryStatus.signers(id);
+        return name.equals(JarFile.MANIFEST_NAME) ? manifestSigners : null;
     }
 
     @Override
     public Status verifyPath(final Path path) {
         if (path.getFileSystem() != filesystem) throw new IllegalArgumentException("Wrong filesystem");
         final var pathname = path.toString();
-        if (statusData.containsKey(pathname)) return getFileStatus(pathname);
-        try {
-            var bytes = Files.readAllBytes(path);
-            verifyAndGetSigners(pathname, bytes);
-            return getFileStatus(pathname);
+        if (!hasSecurityData() || isVerified(pathname)) return getFileStatus(pathname);
+        // Stream the entry through the verifier rather than holding all of it in memory
+        try (var is = verifying(pathname, Files.newInputStream(path))) {
+            if (is instanceof VerifyingInputStream)
+                is.transferTo(OutputStream.nullOutputStream());
+        } catch (SecurityException e) {
+            // The stream has already recorded the entry as invalid
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-    }
-
-    private Optional<StatusData> getData(final String name) {
-        return Optional.ofNullable(statusData.get(name));
+        return getFileStatus(pathname);
     }
 
     @Override
     public Status getFileStatus(final String name) {
-        return hasSecurityData() ? getData(name).map(r->r.status).orElse(Status.NONE) : Status.UNVERIFIED;
+        if (!hasSecurityData()) return Status.UNVERIFIED;
+        final int id = entryStatus.id(name);
+        if (id >= 0) return entryStatus.status(id);
+        return verifiedUnlisted.contains(name) ? Status.VERIFIED : Status.NONE;
     }
 
     @Override
     public Attributes getTrustedManifestEntries(final String name) {
         var manattrs = manifest.getAttributes(name);
         var mansigners = getManifestSigners();
-        var objsigners = getData(name).map(sd->sd.signers).orElse(EMPTY_CODESIGNERS);
+        var verified = hasSecurityData() ? verifiedSigners(name) : null;
+        var objsigners = verified == null ? EMPTY_CODESIGNERS : verified;
         if (mansigners == null || (mansigners.length == objsigners.length)) {
             return manattrs;
         } else {
@@ -203,7 +518,7 @@ public class Jar implements SecureJar {
     }
     @Override
     public boolean hasSecurityData() {
-        return !pendingSigners.isEmpty() || !this.verifiedSigners.isEmpty();
+        return hasSecurityData;
     }
 
     @Override
@@ -213,41 +528,12 @@ public class Jar implements SecureJar {
 
     @Override
     public Set<String> getPackages() {
-        if (this.packages == null) {
-            try (var walk = Files.walk(this.filesystem.getRoot())) {
-                this.packages = walk
-                    .filter(path->path.getNameCount()>0)
-                    .filter(path->!path.getName(0).toString().equals("META-INF"))
-                    .filter(path->path.getFileName().toString().endsWith(".class"))
-                    .filter(Files::isRegularFile)
-                    .map(Path::getParent)
-                    .map(path->path.toString().replace('/','.'))
-                    .filter(pkg->pkg.length()!=0)
-                    .collect(toSet());
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
-        }
         return this.packages;
     }
 
     @Override
     public List<Provider> getProviders() {
-        if (this.providers == null) {
-            final var services = this.filesystem.getRoot().resolve("META-INF/services/");
-            if (Files.exists(services)) {
-                try (var walk = Files.walk(services)) {
-                    this.providers = walk.filter(path->!Files.isDirectory(path))
-                        .map((Path path1) -> Provider.fromPath(path1, filesystem.getFilesystemFilter()))
-                        .toList();
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            } else {
-                this.providers = List.of();
-            }
-        }
-        return this.providers;
+        return this.providers.get();
     }
 
     @Override
@@ -288,7 +574,7 @@ public class Jar implements SecureJar {
 
         @Override
         public Optional<InputStream> open(final String name) {
-            return jar.findFile(name).map(Paths::get).map(LambdaExceptionUtils.rethrowFunction(Files::newInputStream));
+            return jar.open(name);
         }
 
         @Override
@@ -0,0 +1,140 @@
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.niofs.union.UnionFileSystem;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Hands out the same jar for the same archives while they are unchanged, instead of mounting and scanning them again
+ * every time the launcher, a language loader or discovery asks for them. Opt in by setting
+ * {@code securejarhandler.jarCache} to how many jars to keep, the least recently used are dropped beyond that.
+ * <p>
+ * Jars are keyed by their paths, filter, metadata function, default manifest and pin, compared by identity where they
+ * are objects, so only callers passing the same ones share. Each archive's size, modification time and file key are
+ * checked on every hit. Only plain archive files are cached, as a directory's content can change without it showing.
+ * Closing a jar's filesystem drops it from the cache. Dropping a jar never closes it, someone may still be using it.
+ */
+class JarCache {
+    private static final Map<Key, Cached> JARS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Cached> eldest) {
+            return size() > capacity();
+        }
+    };
+
+    /**
+     * The filter, metadata function and default manifest are compared by identity, the paths and pin by value.
+     */
+    private record Key(List<Path> paths, Identity filter, Identity metadata, Identity manifest, SecureJar.Pin pin) {}
+
+    private record Identity(Object value) {
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Identity identity && identity.value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    private record Stamp(long size, long modified, Object fileKey) {}
+
+    private record Cached(SecureJar jar, List<Stamp> stamps) {}
+
+    private static int capacity() {
+        return Integer.getInteger("securejarhandler.jarCache", 0);
+    }
+
+    static boolean isEnabled() {
+        return capacity() > 0;
+    }
+
+    /**
+     * @param filter the jar's filter, or null
+     * @param metadata the jar's metadata function, or null for the default one
+     * @param manifest the jar's default manifest, or null for an empty one
+     * @param pin the jar's pin, or null
+     * @param factory builds the jar on a miss
+     */
+    static SecureJar get(final Object filter, final Object metadata, final Object manifest, final SecureJar.Pin pin, final Path[] paths, final Supplier<SecureJar> factory) {
+        final var normalized = Arrays.stream(paths).map(path -> path.toAbsolutePath().normalize()).toList();
+        final var stamps = stamps(normalized);
+        if (stamps == null) return factory.get();
+        final var key = new Key(normalized, new Identity(filter), new Identity(metadata), new Identity(manifest), pin);
+        synchronized (JARS) {
+            final var cached = JARS.get(key);
+            if (cached != null) {
+                if (cached.stamps().equals(stamps)) return cached.jar();
+                JARS.remove(key);
+            }
+        }
+        // Built outside the lock, jars for different archives can be built at the same time
+        final var jar = factory.get();
+        final var filesystem = jar.getRootPath().getFileSystem();
+        synchronized (JARS) {
+            final var raced = JARS.get(key);
+            if (raced == null || !raced.stamps().equals(stamps)) {
+                JARS.put(key, new Cached(jar, stamps));
+                if (filesystem instanceof UnionFileSystem union)
+                    union.addCloseListener(() -> release(key, jar));
+                return jar;
+            }
+        }
+        // Another thread got there first, ours was never handed out
+        closeQuietly(filesystem);
+        return get(filter, metadata, manifest, pin, paths, factory);
+    }
+
+    private static void closeQuietly(final FileSystem filesystem) {
+        try {
+            filesystem.close();
+        } catch (IOException e) {
+            // It was never used
+        }
+    }
+
+    private static void release(final Key key, final SecureJar jar) {
+        synchronized (JARS) {
+            final var cached = JARS.get(key);
+            if (cached != null && cached.jar() == jar) JARS.remove(key);
+        }
+    }
+
+    /**
+     * @return the current state of each archive, or null if any isn't a plain file
+     */
+    private static List<Stamp> stamps(final List<Path> paths) {
+        try {
+            final var stamps = new Stamp[paths.size()];
+            for (int i = 0; i < stamps.length; i++) {
+                final var path = paths.get(i);
+                if (path.getFileSystem() != FileSystems.getDefault()) return null;
+                final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) return null;
+                stamps[i] = new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+            }
+            return List.of(stamps);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static int size() {
+        synchronized (JARS) {
+            return JARS.size();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package cpw.mods.jarhandling.impl;
+
+import java.security.CodeSigner;
+import java.security.Key;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.EdECKey;
+import java.security.interfaces.RSAKey;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The algorithm restrictions of {@code jdk.jar.disabledAlgorithms}, which {@link java.util.jar.JarFile} applies to
+ * signed jars. The JDK's own reader isn't public, so this follows its documented syntax: comma separated algorithm
+ * names, each optionally narrowed by {@code keySize}, {@code denyAfter} and {@code usage} constraints joined with
+ * {@code &}, and {@code include} lines pulling in other properties such as {@code jdk.disabled.namedCurves}.
+ * <p>
+ * Names match the parts of composite names too, so disabling {@code SHA1} disables {@code SHA1withRSA} and
+ * {@code SHA-1}. A {@code denyAfter} constraint is checked against the signature's timestamp when it has one.
+ * Entries restricted with {@code jdkCA} only apply to chains anchored at the JDK's own certificate authorities, which a
+ * jar can't tell us, so they are left to the JDK.
+ */
+final class JarConstraints {
+    private static final String PROPERTY = "jdk.jar.disabledAlgorithms";
+    private static final Pattern KEY_SIZE = Pattern.compile("keySize\\s*(<=|<|==|!=|>=|>)\\s*(\\d+)");
+    private static final Pattern DENY_AFTER = Pattern.compile("denyAfter\\s+(\\d{4})-(\\d{2})-(\\d{2})");
+    private static final Pattern USAGE = Pattern.compile("usage\\s+(.+)");
+    private static final Pattern NAME_PARTS = Pattern.compile("with|and", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CURVE_NAMES = Pattern.compile("[\\s,\\[\\]()]+");
+    private static volatile JarConstraints current = new JarConstraints(null, List.of());
+
+    private record Constraint(String algorithm, String operator, int keySize, Date denyAfter, boolean otherUsage, boolean jdkCA) {
+        /**
+         * @param keySize the size of the key being checked, or -1 for an algorithm name
+         */
+        boolean disables(final int keySize, final Date date) {
+            if (otherUsage || jdkCA) return false;
+            if (operator != null && (keySize < 0 || !compare(keySize))) return false;
+            return denyAfter == null || (date == null ? new Date() : date).after(denyAfter);
+        }
+
+        private boolean compare(final int size) {
+            return switch (operator) {
+                case "<" -> size < keySize;
+                case "<=" -> size <= keySize;
+                case ">" -> size > keySize;
+                case ">=" -> size >= keySize;
+                case "==" -> size == keySize;
+                default -> size != keySize;
+            };
+        }
+    }
+
+    private final String source;
+    private final List<Constraint> constraints;
+
+    private JarConstraints(final String source, final List<Constraint> constraints) {
+        this.source = source;
+        this.constraints = constraints;
+    }
+
+    /**
+     * @return the restrictions as the security property has them now
+     */
+    static JarConstraints current() {
+        final var source = Security.getProperty(PROPERTY);
+        var constraints = current;
+        if (!Objects.equals(constraints.source, source)) {
+            constraints = new JarConstraints(source, parse(source, new HashSet<>()));
+            current = constraints;
+        }
+        return constraints;
+    }
+
+    private static List<Constraint> parse(final String property, final Set<String> included) {
+        final var constraints = new ArrayList<Constraint>();
+        if (property == null) return constraints;
+        for (var entry : property.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            final int space = entry.indexOf(' ');
+            final var algorithm = space == -1 ? entry : entry.substring(0, space);
+            final var rest = space == -1 ? "" : entry.substring(space + 1).trim();
+            if (algorithm.equals("include")) {
+                if (included.add(rest)) constraints.addAll(parse(Security.getProperty(rest), included));
+                continue;
+            }
+            String operator = null;
+            int keySize = 0;
+            Date denyAfter = null;
+            boolean otherUsage = false;
+            boolean jdkCA = false;
+            for (var part : rest.isEmpty() ? new String[0] : rest.split("&")) {
+                part = part.trim();
+                final var size = KEY_SIZE.matcher(part);
+                final var deny = DENY_AFTER.matcher(part);
+                final var usage = USAGE.matcher(part);
+                if (size.matches()) {
+                    operator = size.group(1);
+                    keySize = Integer.parseInt(size.group(2));
+                } else if (deny.matches()) {
+                    denyAfter = Date.from(LocalDate.of(Integer.parseInt(deny.group(1)), Integer.parseInt(deny.group(2)), Integer.parseInt(deny.group(3)))
+                            .atStartOfDay(ZoneOffset.UTC).toInstant());
+                } else if (usage.matches()) {
+                    otherUsage = !Set.of(usage.group(1).trim().split("\\s+")).contains("SignedJAR");
+                } else if (part.equals("jdkCA")) {
+                    jdkCA = true;
+                }
+                // Anything we don't know restricts nothing further, the algorithm stays disabled
+            }
+            constraints.add(new Constraint(normalize(algorithm), operator, keySize, denyAfter, otherUsage, jdkCA));
+        }
+        return constraints;
+    }
+
+    private static String normalize(final String name) {
+        return name.replace("-", "").toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @param algorithm a digest or signature algorithm, such as {@code SHA-256} or {@code SHA3-256withECDSA}
+     * @param date when the algorithm was used, or null for now
+     */
+    boolean permits(final String algorithm, final Date date) {
+        if (constraints.isEmpty()) return true;
+        final var names = new HashSet<String>();
+        names.add(normalize(algorithm));
+        for (var part : NAME_PARTS.split(algorithm)) {
+            names.add(normalize(part));
+        }
+        if (names.contains("ECDSA")) names.add("EC");
+        return permits(names, -1, date);
+    }
+
+    /**
+     * @param date when the key was used, or null for now
+     */
+    boolean permits(final Key key, final Date date) {
+        if (constraints.isEmpty()) return true;
+        final var names = new HashSet<String>();
+        names.add(normalize(key.getAlgorithm()));
+        int size = -1;
+        if (key instanceof RSAKey rsa) {
+            // RSASSA-PSS keys are RSA keys too
+            names.add("RSA");
+            size = rsa.getModulus().bitLength();
+        } else if (key instanceof DSAKey dsa && dsa.getParams() != null) {
+            size = dsa.getParams().getP().bitLength();
+        } else if (key instanceof ECKey ec) {
+            size = ec.getParams().getCurve().getField().getFieldSize();
+            for (var name : CURVE_NAMES.split(ec.getParams().toString())) {
+                if (!name.isEmpty()) names.add(normalize(name));
+            }
+        } else if (key instanceof EdECKey ed) {
+            names.add(normalize(ed.getParams().getName()));
+            size = ed.getParams().getName().equalsIgnoreCase("Ed448") ? 448 : 255;
+        }
+        return permits(names, size, date);
+    }
+
+    private boolean permits(final Set<String> names, final int keySize, final Date date) {
+        for (var constraint : constraints) {
+            if (names.contains(constraint.algorithm()) && constraint.disables(keySize, date)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks the keys of every certificate the signers and their timestamp authorities present, as the JDK does.
+     */
+    boolean permitsKeys(final CodeSigner[] signers) {
+        final var date = date(signers);
+        for (var signer : signers) {
+            if (!permitsKeys(signer.getSignerCertPath().getCertificates(), date)) return false;
+            final var timestamp = signer.getTimestamp();
+            if (timestamp != null && !permitsKeys(timestamp.getSignerCertPath().getCertificates(), date)) return false;
+        }
+        return true;
+    }
+
+    private boolean permitsKeys(final List<? extends Certificate> certificates, final Date date) {
+        for (var certificate : certificates) {
+            if (certificate instanceof X509Certificate x509 && !permits(x509.getPublicKey(), date)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return when the signers signed, as far as restrictions go: the latest timestamp if every signer has one,
+     * otherwise null for now
+     */
+    static Date date(final CodeSigner[] signers) {
+        Date latest = null;
+        for (var signer : signers) {
+            final var timestamp = signer.getTimestamp();
+            if (timestamp == null) return null;
+            if (latest == null || latest.before(timestamp.getTimestamp())) latest = timestamp.getTimestamp();
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,658 @@
+package cpw.mods.jarhandling.impl;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.CodeSigner;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.Timestamp;
+import java.security.cert.CertPath;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PSSParameterSpec;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Checks a jar's signature files the way {@link java.util.jar.JarFile} does, using only public {@code java.security}
+ * APIs, so nothing has to be pried out of {@link java.util.jar.JarInputStream}'s internals. It only needs the contents
+ * of the signing related files in {@code META-INF}, which can be read straight from the central directory.
+ * <p>
+ * Each signature block (a PKCS#7 {@code .RSA}, {@code .DSA}, {@code .EC} or {@code SIG-*} file) has to verify its
+ * {@code .SF} file, which in turn has to match the manifest, or its sections, byte for byte. A broken signature, a
+ * manifest section that doesn't match its digest or a malformed block throws a {@link SecurityException}, like
+ * opening the jar with {@link java.util.jar.JarFile} would.
+ * Like {@link java.util.jar.JarFile}, a well formed block that uses an algorithm this runtime doesn't have, or one
+ * {@code jdk.jar.disabledAlgorithms} disables (see {@link JarConstraints}), leaves the jar unsigned by that block.
+ * <p>
+ * Most jars share a handful of signing certificates, so the most recently used certificates, chains and code signers
+ * are kept. A certificate seen again isn't parsed again, and jars signed by the same chain get the same
+ * {@link CodeSigner} instance. A code signer carries its signature's timestamp and compares by it, so timestamped
+ * jars share the chain and the timestamp authority's chain, and share a code signer only where their timestamps are
+ * the same. Signatures themselves are still checked jar by jar, as they cover each jar's own files.
+ *
+ * @param pending the signers of each manifest section, to be confirmed once the entry's content is verified
+ * @param manifestSigners the signers of the manifest itself
+ */
+record JarSignatures(Map<String, CodeSigner[]> pending, CodeSigner[] manifestSigners) {
+    private static final String META_INF = "META-INF/";
+    private static final String DATA = "1.2.840.113549.1.7.1";
+    private static final String SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String CONTENT_TYPE = "1.2.840.113549.1.9.3";
+    private static final String TST_INFO = "1.2.840.113549.1.9.16.1.4";
+    private static final String MESSAGE_DIGEST = "1.2.840.113549.1.9.4";
+    private static final String TIMESTAMP_TOKEN = "1.2.840.113549.1.9.16.2.14";
+    private static final String RSASSA_PSS = "1.2.840.113549.1.1.10";
+    private static final Map<String, String> DIGESTS = Map.ofEntries(
+            Map.entry("1.3.14.3.2.26", "SHA-1"),
+            Map.entry("2.16.840.1.101.3.4.2.4", "SHA-224"),
+            Map.entry("2.16.840.1.101.3.4.2.1", "SHA-256"),
+            Map.entry("2.16.840.1.101.3.4.2.2", "SHA-384"),
+            Map.entry("2.16.840.1.101.3.4.2.3", "SHA-512"),
+            Map.entry("2.16.840.1.101.3.4.2.5", "SHA-512/224"),
+            Map.entry("2.16.840.1.101.3.4.2.6", "SHA-512/256"),
+            Map.entry("2.16.840.1.101.3.4.2.7", "SHA3-224"),
+            Map.entry("2.16.840.1.101.3.4.2.8", "SHA3-256"),
+            Map.entry("2.16.840.1.101.3.4.2.9", "SHA3-384"),
+            Map.entry("2.16.840.1.101.3.4.2.10", "SHA3-512"));
+    // How each digest is spelled in the JCA's signature names, which drop the dash of SHA-2 but not of SHA-3
+    private static final Map<String, String> SIGNATURE_DIGESTS = Map.ofEntries(
+            Map.entry("SHA-1", "SHA1"),
+            Map.entry("SHA-224", "SHA224"),
+            Map.entry("SHA-256", "SHA256"),
+            Map.entry("SHA-384", "SHA384"),
+            Map.entry("SHA-512", "SHA512"),
+            Map.entry("SHA-512/224", "SHA512/224"),
+            Map.entry("SHA-512/256", "SHA512/256"),
+            Map.entry("SHA3-224", "SHA3-224"),
+            Map.entry("SHA3-256", "SHA3-256"),
+            Map.entry("SHA3-384", "SHA3-384"),
+            Map.entry("SHA3-512", "SHA3-512"));
+    // Key algorithms, combined with the signer's digest algorithm
+    private static final Map<String, String> KEY_ALGORITHMS = Map.of(
+            "1.2.840.113549.1.1.1", "RSA",
+            "1.2.840.10040.4.1", "DSA",
+            "1.2.840.10045.2.1", "ECDSA");
+    // Complete signature algorithms
+    private static final Map<String, String> SIGNATURES = Map.ofEntries(
+            Map.entry("1.2.840.113549.1.1.5", "SHA1withRSA"),
+            Map.entry("1.2.840.113549.1.1.14", "SHA224withRSA"),
+            Map.entry("1.2.840.113549.1.1.11", "SHA256withRSA"),
+            Map.entry("1.2.840.113549.1.1.12", "SHA384withRSA"),
+            Map.entry("1.2.840.113549.1.1.13", "SHA512withRSA"),
+            Map.entry("1.2.840.113549.1.1.15", "SHA512/224withRSA"),
+            Map.entry("1.2.840.113549.1.1.16", "SHA512/256withRSA"),
+            Map.entry("2.16.840.1.101.3.4.3.13", "SHA3-224withRSA"),
+            Map.entry("2.16.840.1.101.3.4.3.14", "SHA3-256withRSA"),
+            Map.entry("2.16.840.1.101.3.4.3.15", "SHA3-384withRSA"),
+            Map.entry("2.16.840.1.101.3.4.3.16", "SHA3-512withRSA"),
+            Map.entry("1.2.840.10040.4.3", "SHA1withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.1", "SHA224withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.2", "SHA256withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.3", "SHA384withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.4", "SHA512withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.5", "SHA3-224withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.6", "SHA3-256withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.7", "SHA3-384withDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.8", "SHA3-512withDSA"),
+            Map.entry("1.2.840.10045.4.1", "SHA1withECDSA"),
+            Map.entry("1.2.840.10045.4.3.1", "SHA224withECDSA"),
+            Map.entry("1.2.840.10045.4.3.2", "SHA256withECDSA"),
+            Map.entry("1.2.840.10045.4.3.3", "SHA384withECDSA"),
+            Map.entry("1.2.840.10045.4.3.4", "SHA512withECDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.9", "SHA3-224withECDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.10", "SHA3-256withECDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.11", "SHA3-384withECDSA"),
+            Map.entry("2.16.840.1.101.3.4.3.12", "SHA3-512withECDSA"),
+            Map.entry("1.3.101.112", "Ed25519"),
+            Map.entry("1.3.101.113", "Ed448"),
+            Map.entry(RSASSA_PSS, "RSASSA-PSS"));
+
+    // Canonical certificates, by the SHA-256 of their encoding. Only the most recently used are kept, so jars from
+    // many different signers can't grow these without bound.
+    private static final Map<ByteBuffer, X509Certificate> CERTIFICATES = bounded(512);
+    private static final Map<List<X509Certificate>, CertPath> CHAINS = bounded(256);
+    private static final Map<SignerKey, CodeSigner> SIGNERS = bounded(256);
+
+    private record SignerKey(CertPath chain, Timestamp timestamp) {}
+
+    /**
+     * @param digestAlgorithm the digest of the signed content, and of the signed attributes
+     * @param signatureAlgorithm the JCA name of the signature algorithm
+     */
+    private record Signer(X509Certificate certificate, List<X509Certificate> certificates, byte[] signature, Der unsignedAttributes,
+                          String digestAlgorithm, String signatureAlgorithm) {}
+
+    private static <K, V> Map<K, V> bounded(final int capacity) {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * @param manifest the raw bytes of the manifest
+     * @param meta the contents of the jar's signing related files, by name
+     * @return the signers, or null if the jar isn't signed
+     */
+    static JarSignatures read(final byte[] manifest, final Map<String, byte[]> meta) {
+        // Signature file name, upper cased and without extension, to its content
+        var signatureFiles = new HashMap<String, byte[]>();
+        var blocks = new TreeMap<String, byte[]>();
+        for (var entry : meta.entrySet()) {
+            var name = entry.getKey();
+            if (!SecureJarVerifier.isSigningRelated(name) || name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) continue;
+            var file = name.substring(META_INF.length()).toUpperCase(Locale.ENGLISH);
+            if (file.endsWith(".SF")) {
+                signatureFiles.put(file.substring(0, file.length() - 3), entry.getValue());
+            } else {
+                var dot = file.lastIndexOf('.');
+                blocks.put(dot == -1 ? file : file.substring(0, dot), entry.getValue());
+            }
+        }
+
+        var constraints = JarConstraints.current();
+        var pending = new HashMap<String, CodeSigner[]>();
+        CodeSigner[] manifestSigners = null;
+        ManifestSections sections = null;
+        for (var block : blocks.entrySet()) {
+            var sf = signatureFiles.get(block.getKey());
+            if (sf == null) continue;
+            var signers = verifyBlock(block.getValue(), sf, constraints);
+            // Unsupported or disabled, as if the block wasn't there
+            if (signers == null) continue;
+            if (sections == null) sections = new ManifestSections(manifest);
+            var names = signedSections(sf, sections, constraints, JarConstraints.date(signers));
+            if (names == null) continue;
+            for (var name : names) {
+                pending.merge(name, signers, JarSignatures::concat);
+            }
+            // The manifest is always signed by a valid signature file
+            manifestSigners = manifestSigners == null ? signers : concat(manifestSigners, signers);
+        }
+        return manifestSigners == null ? null : new JarSignatures(Map.copyOf(pending), manifestSigners);
+    }
+
+    private static CodeSigner[] concat(final CodeSigner[] first, final CodeSigner[] second) {
+        var signers = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, signers, first.length, second.length);
+        return signers;
+    }
+
+    /*
+     * The manifest sections a signature file vouches for, either because it signs the whole manifest or section by
+     * section, or null if it only has digests that are disabled or unknown
+     */
+    private static List<String> signedSections(final byte[] sf, final ManifestSections sections, final JarConstraints constraints, final Date date) {
+        final Manifest signatureFile;
+        try {
+            signatureFile = new Manifest(new ByteArrayInputStream(sf));
+        } catch (IOException e) {
+            throw new SecurityException("Invalid signature file", e);
+        }
+        var main = signatureFile.getMainAttributes();
+        final Digests digests = algorithm -> digest(algorithm, constraints, date);
+        final var whole = usable(main, "-DIGEST-MANIFEST", digests);
+        final var mainAttributes = usable(main, "-DIGEST-MANIFEST-MAIN-ATTRIBUTES", digests);
+        if (whole == Usable.DISABLED || whole == Usable.NONE && mainAttributes == Usable.DISABLED)
+            return null;
+        final boolean manifestSigned = matchesAny(main, "-DIGEST-MANIFEST", sections::whole, digests);
+        if (!manifestSigned && !matchesAll(main, "-DIGEST-MANIFEST-MAIN-ATTRIBUTES", sections::main, digests))
+            throw new SecurityException("Invalid signature file digest for Manifest main attributes");
+
+        var names = new ArrayList<String>();
+        for (var section : signatureFile.getEntries().entrySet()) {
+            var name = section.getKey();
+            if (!manifestSigned) {
+                if (!sections.contains(name))
+                    throw new SecurityException("no manifest section for signature file entry " + name);
+                // Unsigned if the signature file has no digest of the section we may use
+                if (!verifySection(section.getValue(), name, sections, digests))
+                    continue;
+            }
+            if (name.startsWith("./")) name = name.substring(2);
+            if (name.startsWith("/")) name = name.substring(1);
+            names.add(name);
+        }
+        return names;
+    }
+
+    /*
+     * Whether the signature file has a digest of the section it may use. One that doesn't match means the manifest was
+     * changed after signing, which fails the jar as it does JarFile.
+     */
+    private static boolean verifySection(final Attributes attributes, final String name, final ManifestSections sections, final Digests digests) {
+        boolean verified = false;
+        for (var attribute : attributes.entrySet()) {
+            var key = attribute.getKey().toString();
+            if (!key.toUpperCase(Locale.ENGLISH).endsWith("-DIGEST")) continue;
+            var algorithm = key.substring(0, key.length() - 7);
+            var digest = digests.digest(algorithm.toUpperCase(Locale.ENGLISH));
+            if (digest == null) continue;
+            var expected = Base64.getMimeDecoder().decode((String) attribute.getValue());
+            // Some old signers didn't include the section's trailing blank line
+            if (!MessageDigest.isEqual(sections.section(name, digest, true), expected)
+                    && !MessageDigest.isEqual(sections.section(name, digest, false), expected))
+                throw new SecurityException("invalid " + algorithm + " signature file digest for " + name);
+            verified = true;
+        }
+        return verified;
+    }
+
+    private interface Digester {
+        byte[] digest(MessageDigest digest);
+    }
+
+    /*
+     * Hands out fresh digests for the algorithms that may be used, null for the rest
+     */
+    private interface Digests {
+        MessageDigest digest(String algorithm);
+    }
+
+    private enum Usable { NONE, DISABLED, USABLE }
+
+    /*
+     * Whether the attributes have digests with the suffix at all, and whether any of them may be used
+     */
+    private static Usable usable(final Attributes attributes, final String suffix, final Digests digests) {
+        var usable = Usable.NONE;
+        for (var attribute : attributes.keySet()) {
+            var key = attribute.toString().toUpperCase(Locale.ENGLISH);
+            if (!key.endsWith(suffix)) continue;
+            if (digests.digest(key.substring(0, key.length() - suffix.length())) != null) return Usable.USABLE;
+            usable = Usable.DISABLED;
+        }
+        return usable;
+    }
+
+    private static boolean matchesAny(final Attributes attributes, final String suffix, final Digester digester, final Digests digests) {
+        for (var attribute : attributes.entrySet()) {
+            var key = attribute.getKey().toString().toUpperCase(Locale.ENGLISH);
+            if (!key.endsWith(suffix)) continue;
+            var digest = digests.digest(key.substring(0, key.length() - suffix.length()));
+            if (digest != null && MessageDigest.isEqual(digester.digest(digest), Base64.getMimeDecoder().decode((String) attribute.getValue())))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesAll(final Attributes attributes, final String suffix, final Digester digester, final Digests digests) {
+        for (var attribute : attributes.entrySet()) {
+            var key = attribute.getKey().toString().toUpperCase(Locale.ENGLISH);
+            if (!key.endsWith(suffix)) continue;
+            var digest = digests.digest(key.substring(0, key.length() - suffix.length()));
+            if (digest != null && !MessageDigest.isEqual(digester.digest(digest), Base64.getMimeDecoder().decode((String) attribute.getValue())))
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * A fresh digest for a manifest algorithm name, or null if it is unknown or disabled at that date
+     */
+    private static MessageDigest digest(final String algorithm, final JarConstraints constraints, final Date date) {
+        if (!constraints.permits(algorithm, date)) return null;
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /*
+     * The block's signers, or null if it uses algorithms that are unsupported or disabled
+     */
+    private static CodeSigner[] verifyBlock(final byte[] block, final byte[] sf, final JarConstraints constraints) {
+        try {
+            var signers = verifySignedData(Der.parse(block), sf);
+            var codeSigners = new CodeSigner[signers.size()];
+            for (int i = 0; i < codeSigners.length; i++) {
+                var signer = signers.get(i);
+                var key = new SignerKey(certPath(signer.certificate(), signer.certificates()), timestamp(signer, constraints));
+                codeSigners[i] = SIGNERS.computeIfAbsent(key, k -> new CodeSigner(k.chain(), k.timestamp()));
+            }
+            return permits(constraints, signers, JarConstraints.date(codeSigners)) && constraints.permitsKeys(codeSigners) ? codeSigners : null;
+        } catch (NoSuchAlgorithmException e) {
+            // Well formed, but nothing here can check it
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("cannot verify signature block file", e);
+        } catch (SecurityException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Structures that parse as DER, but aren't what PKCS#7 says they should be
+            throw new SecurityException("Malformed signature block file", e);
+        }
+    }
+
+    private static boolean permits(final JarConstraints constraints, final List<Signer> signers, final Date date) {
+        for (var signer : signers) {
+            if (!constraints.permits(signer.digestAlgorithm(), date) || !constraints.permits(signer.signatureAlgorithm(), date))
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Verifies a PKCS#7 SignedData over the content, or over its own encapsulated content if that is null.
+     * Every signer has to verify, and there has to be at least one.
+     */
+    private static List<Signer> verifySignedData(final Der contentInfo, final byte[] content) throws GeneralSecurityException {
+        var info = contentInfo.expect(Der.SEQUENCE).children();
+        if (info.size() < 2 || !info.get(0).oid().equals(SIGNED_DATA))
+            throw new SecurityException("Not a PKCS#7 signed data block");
+        var signedData = info.get(1).expect(Der.CONTEXT_0).child(0).expect(Der.SEQUENCE).children();
+        if (signedData.size() < 4)
+            throw new SecurityException("Truncated PKCS#7 signed data");
+        var encapsulated = signedData.get(2).expect(Der.SEQUENCE).children();
+        var contentType = encapsulated.get(0).oid();
+        var signedContent = content;
+        if (signedContent == null) {
+            if (encapsulated.size() < 2)
+                throw new SecurityException("Missing PKCS#7 content");
+            signedContent = encapsulated.get(1).expect(Der.CONTEXT_0).child(0).expect(Der.OCTET_STRING).content();
+        } else if (!contentType.equals(DATA)) {
+            throw new SecurityException("Signature block doesn't sign data");
+        }
+
+        var certificates = new ArrayList<X509Certificate>();
+        for (int i = 3; i < signedData.size() - 1; i++) {
+            if (signedData.get(i).tag() != Der.CONTEXT_0) continue;
+            for (var certificate : signedData.get(i).children()) {
+                if (certificate.tag() == Der.SEQUENCE)
+                    certificates.add(certificate(certificate));
+            }
+        }
+
+        var signerInfos = signedData.get(signedData.size() - 1).expect(Der.SET).children();
+        if (signerInfos.isEmpty())
+            throw new SecurityException("No signers in PKCS#7 signed data");
+        var signers = new ArrayList<Signer>(signerInfos.size());
+        for (var signerInfo : signerInfos) {
+            signers.add(verifySigner(signerInfo.expect(Der.SEQUENCE).children(), signedContent, contentType, certificates));
+        }
+        return signers;
+    }
+
+    private static Signer verifySigner(final List<Der> signerInfo, final byte[] content, final String contentType, final List<X509Certificate> certificates) throws GeneralSecurityException {
+        if (signerInfo.size() < 5)
+            throw new SecurityException("Truncated PKCS#7 signer info");
+        // The algorithm first, a block we can't check is unsigned whatever else is in it
+        var digestOid = signerInfo.get(2).expect(Der.SEQUENCE).child(0).oid();
+        var digestAlgorithm = DIGESTS.get(digestOid);
+        if (digestAlgorithm == null)
+            throw new NoSuchAlgorithmException("Unsupported digest algorithm " + digestOid);
+        int next = 1;
+        var certificate = findCertificate(signerInfo.get(next++), certificates);
+        next++;
+        Der signedAttributes = null;
+        if (signerInfo.get(next).tag() == Der.CONTEXT_0)
+            signedAttributes = signerInfo.get(next++);
+        var signatureAlgorithm = signerInfo.get(next++).expect(Der.SEQUENCE).children();
+        var signature = signerInfo.get(next++).expect(Der.OCTET_STRING).content();
+        var unsignedAttributes = next < signerInfo.size() && signerInfo.get(next).tag() == Der.CONTEXT_1 ? signerInfo.get(next) : null;
+
+        byte[] signed = content;
+        if (signedAttributes != null) {
+            // RFC 5652 5.6, the attributes have to say what was signed
+            var signedType = attribute(signedAttributes, CONTENT_TYPE);
+            if (signedType == null || !signedType.oid().equals(contentType))
+                throw new SecurityException("Signed content type doesn't match");
+            var messageDigest = attribute(signedAttributes, MESSAGE_DIGEST);
+            if (messageDigest == null || !MessageDigest.isEqual(MessageDigest.getInstance(digestAlgorithm).digest(content), messageDigest.expect(Der.OCTET_STRING).content()))
+                throw new SecurityException("Signed content digest doesn't match");
+            // The signature covers the attributes as a SET, not as the implicitly tagged value they're stored as
+            signed = signedAttributes.encoded();
+            signed[0] = (byte) Der.SET;
+        }
+
+        var keyUsage = certificate.getKeyUsage();
+        if (keyUsage != null && !keyUsage[0] && !(keyUsage.length > 1 && keyUsage[1]))
+            throw new SecurityException("Key usage restricted: cannot be used for digital signatures");
+
+        var verifier = signature(digestAlgorithm, signatureAlgorithm);
+        verifier.initVerify(certificate.getPublicKey());
+        verifier.update(signed);
+        if (!verifier.verify(signature))
+            throw new SecurityException("Signature doesn't match");
+        return new Signer(certificate, certificates, signature, unsignedAttributes, digestAlgorithm, verifier.getAlgorithm());
+    }
+
+    private static Signature signature(final String digestAlgorithm, final List<Der> algorithm) throws GeneralSecurityException {
+        var oid = algorithm.get(0).oid();
+        var key = KEY_ALGORITHMS.get(oid);
+        if (key != null)
+            return Signature.getInstance(SIGNATURE_DIGESTS.get(digestAlgorithm) + "with" + key);
+        var name = SIGNATURES.get(oid);
+        if (name == null)
+            throw new NoSuchAlgorithmException("Unsupported signature algorithm " + oid);
+        var signature = Signature.getInstance(name);
+        if (oid.equals(RSASSA_PSS)) {
+            if (algorithm.size() < 2)
+                throw new NoSuchAlgorithmException("Missing RSASSA-PSS parameters");
+            var parameters = AlgorithmParameters.getInstance("RSASSA-PSS");
+            try {
+                parameters.init(algorithm.get(1).encoded());
+            } catch (IOException e) {
+                throw new SecurityException("Invalid RSASSA-PSS parameters", e);
+            }
+            signature.setParameter(parameters.getParameterSpec(PSSParameterSpec.class));
+        }
+        return signature;
+    }
+
+    private static X509Certificate findCertificate(final Der identifier, final List<X509Certificate> certificates) {
+        if (identifier.tag() == Der.SEQUENCE) {
+            var issuer = new X500Principal(identifier.child(0).encoded());
+            var serial = identifier.child(1).integer();
+            for (var certificate : certificates) {
+                if (certificate.getSerialNumber().equals(serial) && certificate.getIssuerX500Principal().equals(issuer))
+                    return certificate;
+            }
+        } else if (identifier.tag() == (Der.CONTEXT_0 & ~0x20)) {
+            var keyId = identifier.content();
+            for (var certificate : certificates) {
+                var extension = certificate.getExtensionValue("2.5.29.14");
+                if (extension != null && Arrays.equals(Der.parse(Der.parse(extension).content()).content(), keyId))
+                    return certificate;
+            }
+        }
+        throw new SecurityException("Signer's certificate is missing from the signature block");
+    }
+
+    private static Der attribute(final Der attributes, final String oid) {
+        for (var attribute : attributes.children()) {
+            var parts = attribute.expect(Der.SEQUENCE).children();
+            if (parts.size() >= 2 && parts.get(0).oid().equals(oid))
+                return parts.get(1).expect(Der.SET).child(0);
+        }
+        return null;
+    }
+
+    private static X509Certificate certificate(final Der encoded) throws GeneralSecurityException {
+        var sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(encoded.data(), encoded.offset(), encoded.end() - encoded.offset());
+        var fingerprint = ByteBuffer.wrap(sha256.digest());
+        var certificate = CERTIFICATES.get(fingerprint);
+        if (certificate == null) {
+            certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded.encoded()));
+            var existing = CERTIFICATES.putIfAbsent(fingerprint, certificate);
+            if (existing != null) certificate = existing;
+        }
+        return certificate;
+    }
+
+    /*
+     * The signer's certificate followed by its issuers, as far as the block has them
+     */
+    private static CertPath certPath(final X509Certificate certificate, final List<X509Certificate> certificates) throws GeneralSecurityException {
+        var chain = new ArrayList<X509Certificate>();
+        var current = certificate;
+        while (current != null && !chain.contains(current)) {
+            chain.add(current);
+            if (current.getIssuerX500Principal().equals(current.getSubjectX500Principal())) break;
+            X509Certificate issuer = null;
+            for (var candidate : certificates) {
+                if (candidate.getSubjectX500Principal().equals(current.getIssuerX500Principal())) {
+                    issuer = candidate;
+                    break;
+                }
+            }
+            current = issuer;
+        }
+        var path = CHAINS.get(chain);
+        if (path == null) {
+            path = CertificateFactory.getInstance("X.509").generateCertPath(chain);
+            var existing = CHAINS.putIfAbsent(List.copyOf(chain), path);
+            if (existing != null) path = existing;
+        }
+        return path;
+    }
+
+    /*
+     * The RFC 3161 timestamp of the signer's signature, if it has one. It has to be signed itself, and over this signature.
+     */
+    private static Timestamp timestamp(final Signer signer, final JarConstraints constraints) throws GeneralSecurityException {
+        if (signer.unsignedAttributes() == null) return null;
+        var token = attribute(signer.unsignedAttributes(), TIMESTAMP_TOKEN);
+        if (token == null) return null;
+        var authorities = verifySignedData(token, null);
+        var encapsulated = token.child(1).child(0).child(2).children();
+        if (!encapsulated.get(0).oid().equals(TST_INFO))
+            throw new SecurityException("Timestamp token doesn't hold timestamp info");
+        var info = Der.parse(encapsulated.get(1).child(0).content()).expect(Der.SEQUENCE).children();
+        var imprint = info.get(2).expect(Der.SEQUENCE).children();
+        var imprintAlgorithm = DIGESTS.get(imprint.get(0).child(0).oid());
+        if (imprintAlgorithm == null)
+            throw new NoSuchAlgorithmException("Unsupported timestamp digest algorithm");
+        if (!MessageDigest.isEqual(MessageDigest.getInstance(imprintAlgorithm).digest(signer.signature()), imprint.get(1).expect(Der.OCTET_STRING).content()))
+            throw new SecurityException("Timestamp doesn't cover the signature");
+        // A timestamp signed with a disabled algorithm doesn't count, the signature is judged as of now
+        if (!permits(constraints, authorities, null))
+            return null;
+        var authority = authorities.get(0);
+        return new Timestamp(generalizedTime(info.get(4)), certPath(authority.certificate(), authority.certificates()));
+    }
+
+    private static Date generalizedTime(final Der time) {
+        var text = new String(time.expect(0x18).content(), StandardCharsets.US_ASCII);
+        if (!text.endsWith("Z") || text.length() < 15)
+            throw new SecurityException("Unsupported timestamp time " + text);
+        var seconds = LocalDateTime.parse(text.substring(0, 14), DateTimeFormatter.ofPattern("yyyyMMddHHmmss")).toInstant(ZoneOffset.UTC);
+        var fraction = text.substring(14, text.length() - 1);
+        if (fraction.startsWith(".") && fraction.length() > 1)
+            seconds = seconds.plusNanos(new BigInteger((fraction.substring(1) + "000000000").substring(0, 9)).longValue());
+        return Date.from(seconds);
+    }
+
+    /**
+     * The raw sections of a manifest, which signature files hash byte for byte. Follows the JDK's own splitting,
+     * including its treatment of continued names and sections without a trailing blank line.
+     */
+    private static final class ManifestSections {
+        private record Section(int offset, int length, int lengthWithBlankLine) {}
+
+        private final byte[] bytes;
+        private Section main;
+        private final Map<String, List<Section>> sections = new HashMap<>();
+
+        ManifestSections(final byte[] bytes) {
+            this.bytes = bytes;
+            var position = new int[3]; // end of first line, end of section, start of next
+            if (!findSection(0, position)) return;
+            this.main = new Section(0, position[1] + 1, position[2]);
+            int start = position[2];
+            while (findSection(start, position)) {
+                final int firstLine = position[0] - start + 1;
+                final int length = position[1] - start + 1;
+                final int withBlank = position[2] - start;
+                if (firstLine > 6 && isNameAttribute(start)) {
+                    var name = new ByteArrayOutputStream();
+                    name.write(bytes, start + 6, firstLine - 6);
+                    int i = start + firstLine;
+                    if (i - start < withBlank) {
+                        i += bytes[i] == '\r' && i + 1 - start < withBlank && bytes[i + 1] == '\n' ? 2 : 1;
+                    }
+                    while (i - start < withBlank && bytes[i++] == ' ') {
+                        // The name is continued on this line
+                        final int wrapStart = i;
+                        while (i - start < withBlank && bytes[i] != '\r' && bytes[i] != '\n') i++;
+                        final int wrapLength = i - wrapStart;
+                        if (i - start < withBlank) {
+                            i++;
+                            if (bytes[i - 1] == '\r' && i - start < withBlank && bytes[i] == '\n') i++;
+                        }
+                        name.write(bytes, wrapStart, wrapLength);
+                    }
+                    sections.computeIfAbsent(name.toString(StandardCharsets.UTF_8), k -> new ArrayList<>()).add(new Section(start, length, withBlank));
+                }
+                start = position[2];
+            }
+        }
+
+        private boolean isNameAttribute(final int start) {
+            return (bytes[start] | 0x20) == 'n' && (bytes[start + 1] | 0x20) == 'a' && (bytes[start + 2] | 0x20) == 'm'
+                    && (bytes[start + 3] | 0x20) == 'e' && bytes[start + 4] == ':' && bytes[start + 5] == ' ';
+        }
+
+        private boolean findSection(final int offset, final int[] position) {
+            int last = offset - 1;
+            boolean allBlank = true;
+            position[0] = Integer.MIN_VALUE;
+            for (int i = offset; i < bytes.length; i++) {
+                final byte b = bytes[i];
+                if (b != '\r' && b != '\n') {
+                    allBlank = false;
+                    continue;
+                }
+                if (position[0] == Integer.MIN_VALUE) position[0] = i - 1;
+                // A CRLF ends the line at its LF
+                if (b == '\r' && i < bytes.length - 1 && bytes[i + 1] == '\n') i++;
+                if (allBlank || i == bytes.length - 1) {
+                    position[1] = allBlank ? last : i;
+                    position[2] = i + 1;
+                    return true;
+                }
+                last = i;
+                allBlank = true;
+            }
+            return false;
+        }
+
+        boolean contains(final String name) {
+            return sections.containsKey(name);
+        }
+
+        byte[] whole(final MessageDigest digest) {
+            return digest.digest(bytes);
+        }
+
+        byte[] main(final MessageDigest digest) {
+            if (main != null) digest.update(bytes, main.offset(), main.lengthWithBlankLine());
+            return digest.digest();
+        }
+
+        byte[] section(final String name, final MessageDigest digest, final boolean withBlankLine) {
+            for (var section : sections.getOrDefault(name, List.of())) {
+                digest.update(bytes, section.offset(), withBlankLine ? section.lengthWithBlankLine() : section.length());
+            }
+            return digest.digest();
+        }
+    }
+}
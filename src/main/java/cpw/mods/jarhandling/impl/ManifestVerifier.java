@@ -4,22 +4,47 @@ import java.security.CodeSigner;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.jar.Attributes;
-import java.util.jar.Manifest;
+import java.util.concurrent.ConcurrentHashMap;
 
 class ManifestVerifier {
     private static final boolean DEBUG = Boolean.parseBoolean(System.getProperty("securejarhandler.debugVerifier", "false"));
+    // Large entries are hashed a chunk at a time with every algorithm, so the data is only brought into cache once
+    private static final int CHUNK = 16 * 1024;
 
-    private static final Base64.Decoder BASE64D = Base64.getDecoder();
-    private final Map<String, MessageDigest> HASHERS = new HashMap<>();
+    private final Map<String, MessageDigest> HASHERS = new ConcurrentHashMap<>();
+    // Per thread engines for verifying complete byte arrays, which can't be interleaved on one thread
+    private static final ThreadLocal<Map<String, MessageDigest>> LOCAL_HASHERS = ThreadLocal.withInitial(HashMap::new);
+
+    /*
+     * Hands out a fresh digest per call, cloned from a shared prototype, so entries can be hashed in parallel
+     * without locking. Used for streams, which can be read in any interleaving.
+     */
     private MessageDigest getHasher(String name) {
-        return HASHERS.computeIfAbsent(name.toLowerCase(Locale.ENGLISH), k -> {
+        var prototype = HASHERS.computeIfAbsent(name.toLowerCase(Locale.ENGLISH), k -> {
             try {
                 return MessageDigest.getInstance(k);
             } catch (NoSuchAlgorithmException e) {
                 throw new RuntimeException(e);
             }
         });
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            try {
+                return MessageDigest.getInstance(prototype.getAlgorithm(), prototype.getProvider());
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /*
+     * Hands out this thread's engine for the algorithm, reset and ready for use.
+     */
+    private MessageDigest getLocalHasher(String name) {
+        var hasher = LOCAL_HASHERS.get().computeIfAbsent(name.toLowerCase(Locale.ENGLISH), this::getHasher);
+        hasher.reset();
+        return hasher;
     }
 
     private void log(String line) {
@@ -27,58 +52,104 @@ class ManifestVerifier {
     }
 
     /**
-     * This is Dumb API, but it's a package private class so la-de-da!
-     * return:
-     *   null - Something went wrong, digests were not verified.
-     *   Optional.empty() - No signatures to verify, missing *-Digest entry in manifest, or nobody signed that particular entry
-     *   Optional.isPresent() - code signers!
+     * The hashers for every digest the manifest lists for one entry. Content is fed to all of them in one pass.
      */
-    Optional<CodeSigner[]> verify(final Manifest manifest, final Map<String, CodeSigner[]> pending,
-                                  final Map<String, CodeSigner[]> verified, final String name, final byte[] data) {
-        if (DEBUG)
-            log("[SJH] Verifying: " + name);
-        Attributes attr = manifest.getAttributes(name);
-        if (attr == null) {
-            if (DEBUG)
-                log("[SJH]   No Manifest Entry");
-            return Optional.empty();
+    final class Digests {
+        private final String name;
+        private final MessageDigest[] hashers;
+        private final byte[] expected;
+        private final boolean malformed;
+
+        private Digests(final String name, final MessageDigest[] hashers, final byte[] expected, final boolean malformed) {
+            this.name = name;
+            this.hashers = hashers;
+            this.expected = expected;
+            this.malformed = malformed;
+        }
+
+        void update(final byte b) {
+            for (var hasher : hashers) hasher.update(b);
         }
 
-        record Expected(MessageDigest hash, byte[] value){};
-        var expected = new ArrayList<Expected>();
-        attr.forEach((k,v) -> {
-            var key = k.toString();
-            if (key.toLowerCase(Locale.ENGLISH).endsWith("-digest")) {
-                var algo = key.substring(0, key.length() - 7);
-                var hash = BASE64D.decode((String)v);
-                expected.add(new Expected(getHasher(algo), hash));
+        void update(final byte[] data, final int off, final int len) {
+            for (int chunk = off; chunk < off + len; chunk += CHUNK) {
+                final int chunkLen = Math.min(CHUNK, off + len - chunk);
+                for (var hasher : hashers) hasher.update(data, chunk, chunkLen);
             }
-        });
-        if (expected.isEmpty()) {
-            if (DEBUG)
-                log("[SJH]   No Manifest Hashes");
-            return Optional.empty();
         }
 
-        for (var exp : expected) {
-            synchronized (exp.hash()) {
-                exp.hash().reset();
-                byte[] actual = exp.hash().digest(data);
+        /**
+         * Checks the digests of everything fed in so far.
+         */
+        boolean matches() {
+            if (malformed) {
+                if (DEBUG)
+                    log("[SJH]   Failed: Malformed manifest digests for " + name);
+                return false;
+            }
+            int offset = 0;
+            for (var hasher : hashers) {
+                byte[] actual = hasher.digest();
                 if (DEBUG) {
-                    log("[SJH]   " + exp.hash().getAlgorithm() + " Expected: " + SecureJarVerifier.toHexString(exp.value()));
-                    log("[SJH]   " + exp.hash().getAlgorithm() + " Actual:   " + SecureJarVerifier.toHexString(actual));
+                    log("[SJH]   " + hasher.getAlgorithm() + " Expected: " + SecureJarVerifier.toHexString(Arrays.copyOfRange(expected, offset, offset + actual.length)));
+                    log("[SJH]   " + hasher.getAlgorithm() + " Actual:   " + SecureJarVerifier.toHexString(actual));
                 }
-                if (!Arrays.equals(exp.value(), actual)) {
+                if (offset + actual.length > expected.length || !Arrays.equals(expected, offset, offset + actual.length, actual, 0, actual.length)) {
                     if (DEBUG)
                         log("[SJH]   Failed: Invalid hashes");
-                    return null;
+                    return false;
                 }
+                offset += actual.length;
             }
+            return offset == expected.length;
         }
+    }
+
+    /**
+     * The digests the manifest lists for an entry, with fresh hashers ready to take the entry's content.
+     * return:
+     *   null - No *-Digest entries in the manifest entry
+     */
+    Digests digests(final EntryStatusTable table, final int id) {
+        return digests(table, id, false);
+    }
+
+    private Digests digests(final EntryStatusTable table, final int id, final boolean local) {
+        final int mask = table.algorithmMask(id);
+        if (mask == 0)
+            return null;
+        if (mask == EntryStatusTable.MALFORMED)
+            return new Digests(table.name(id), new MessageDigest[0], new byte[0], true);
+        final var algorithms = table.algorithms();
+        final var hashers = new MessageDigest[Integer.bitCount(mask)];
+        for (int algorithm = 0, i = 0; algorithm < algorithms.length; algorithm++) {
+            if ((mask & (1 << algorithm)) != 0)
+                hashers[i++] = local ? getLocalHasher(algorithms[algorithm]) : getHasher(algorithms[algorithm]);
+        }
+        return new Digests(table.name(id), hashers, table.digests(id), false);
+    }
+
+    /**
+     * This is Dumb API, but it's a package private class so la-de-da!
+     * return:
+     *   null - Something went wrong, digests were not verified.
+     *   Optional.empty() - No signatures to verify, missing *-Digest entry in manifest, or nobody signed that particular entry
+     *   Optional.isPresent() - code signers!
+     */
+    Optional<CodeSigner[]> verify(final EntryStatusTable table, final int id, final byte[] data) {
+        if (DEBUG)
+            log("[SJH] Verifying: " + table.name(id));
+        var digests = digests(table, id, true);
+        if (digests == null) {
+            if (DEBUG)
+                log("[SJH]   No Manifest Hashes");
+            return Optional.empty();
+        }
+
+        digests.update(data, 0, data.length);
+        if (!digests.matches())
+            return null;
 
-        var signers = pending.remove(name);
-        if (signers != null)
-            verified.put(name, signers);
-        return Optional.ofNullable(signers);
+        return Optional.ofNullable(table.pendingSigners(id));
     }
 }
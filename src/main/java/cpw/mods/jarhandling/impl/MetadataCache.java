@@ -0,0 +1,278 @@
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.jarhandling.JarMetadata;
+import cpw.mods.jarhandling.SecureJar;
+import cpw.mods.niofs.union.UnionFileSystem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.module.ModuleDescriptor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps what building a jar's module takes, its packages, services, multi-release names and metadata, on disk between
+ * launches, so an unchanged archive doesn't have to have its file tree walked or its {@code module-info.class} parsed.
+ * Enabled by pointing {@code securejarhandler.metadataCache} at a directory.
+ * <p>
+ * Entries are keyed by the archive's path, size, modification time and a CRC32C of its central directory. The central
+ * directory holds every file name along with the CRC of its content, so the fingerprint changes with the archive
+ * while only the end of the file is read. Anything without a central directory, such as a directory, isn't cached.
+ */
+class MetadataCache {
+    private static final int MAGIC = 0x534A484D; // SJHM
+    private static final int VERSION = 3;
+    private static final byte NO_METADATA = 0;
+    private static final byte SIMPLE = 1;
+    private static final byte MODULE = 2;
+
+    /**
+     * What was cached for an archive.
+     *
+     * @param metadataPaths the paths {@link JarMetadata#from} was given, module names can come from them
+     * @param metadata the archive's default metadata for those paths, or null if it wasn't known
+     */
+    record Entry(Set<String> packages, List<SecureJar.Provider> providers, Map<String, String> versionedNames, List<String> metadataPaths, JarMetadata metadata) {
+        /**
+         * @return the default metadata, if it was worked out from the same paths
+         */
+        JarMetadata metadataFor(final List<String> paths) {
+            return metadataPaths.equals(paths) ? metadata : null;
+        }
+    }
+
+    record Key(Path directory, Path archive, long size, long modified, long fingerprint) {}
+
+    static Key key(final Path archive) {
+        var dir = System.getProperty("securejarhandler.metadataCache");
+        if (dir == null || dir.isEmpty()) return null;
+        try {
+            final var path = archive.toAbsolutePath().normalize();
+            final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            final long fingerprint = UnionFileSystem.centralDirectoryChecksum(path);
+            return new Key(Path.of(dir), path, attributes.size(), attributes.lastModifiedTime().toMillis(), fingerprint);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static Entry load(final Key key) {
+        try (var in = new DataInputStream(Files.newInputStream(cacheFile(key)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != Runtime.version().feature()) return null;
+            if (!in.readUTF().equals(key.archive().toString()) || in.readLong() != key.size()
+                    || in.readLong() != key.modified() || in.readLong() != key.fingerprint()) return null;
+            final var packages = Set.copyOf(readStrings(in));
+            final var providers = new ArrayList<SecureJar.Provider>();
+            for (int i = in.readInt(); i > 0; i--) {
+                providers.add(new SecureJar.Provider(in.readUTF(), List.copyOf(readStrings(in))));
+            }
+            final var versionedNames = new HashMap<String, String>();
+            for (int i = in.readInt(); i > 0; i--) {
+                versionedNames.put(in.readUTF(), in.readUTF());
+            }
+            final var metadataPaths = List.copyOf(readStrings(in));
+            final JarMetadata metadata = switch (in.readByte()) {
+                case SIMPLE -> new SimpleJarMetadata(in.readUTF(), readNullable(in), packages, List.copyOf(providers));
+                case MODULE -> new ModuleJarMetadata(readDescriptor(in));
+                default -> null;
+            };
+            return new Entry(packages, List.copyOf(providers), Map.copyOf(versionedNames), metadataPaths, metadata);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            // A broken or outdated cache file is as good as none, it is rewritten on save
+            return null;
+        }
+    }
+
+    static void save(final Key key, final Entry entry) {
+        try {
+            Files.createDirectories(key.directory());
+            final var target = cacheFile(key);
+            final var temp = Files.createTempFile(key.directory(), target.getFileName().toString(), ".tmp");
+            try {
+                try (var out = new DataOutputStream(Files.newOutputStream(temp))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(Runtime.version().feature());
+                    out.writeUTF(key.archive().toString());
+                    out.writeLong(key.size());
+                    out.writeLong(key.modified());
+                    out.writeLong(key.fingerprint());
+                    writeStrings(out, entry.packages());
+                    out.writeInt(entry.providers().size());
+                    for (var provider : entry.providers()) {
+                        out.writeUTF(provider.serviceName());
+                        writeStrings(out, provider.providers());
+                    }
+                    out.writeInt(entry.versionedNames().size());
+                    for (var name : entry.versionedNames().entrySet()) {
+                        out.writeUTF(name.getKey());
+                        out.writeUTF(name.getValue());
+                    }
+                    writeStrings(out, entry.metadataPaths());
+                    if (entry.metadata() instanceof SimpleJarMetadata simple) {
+                        out.writeByte(SIMPLE);
+                        out.writeUTF(simple.name());
+                        writeNullable(out, simple.version());
+                    } else if (entry.metadata() instanceof ModuleJarMetadata module) {
+                        out.writeByte(MODULE);
+                        writeDescriptor(out, module.descriptor());
+                    } else {
+                        out.writeByte(NO_METADATA);
+                    }
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // Best effort, the next launch reads the archive again
+        }
+    }
+
+    private static void writeDescriptor(final DataOutputStream out, final ModuleDescriptor descriptor) throws IOException {
+        out.writeUTF(descriptor.name());
+        writeEnums(out, descriptor.modifiers());
+        writeNullable(out, descriptor.rawVersion().orElse(null));
+        out.writeInt(descriptor.requires().size());
+        for (var requires : descriptor.requires()) {
+            writeEnums(out, requires.modifiers());
+            out.writeUTF(requires.name());
+            writeNullable(out, requires.rawCompiledVersion().orElse(null));
+        }
+        out.writeInt(descriptor.exports().size());
+        for (var exports : descriptor.exports()) {
+            writeEnums(out, exports.modifiers());
+            out.writeUTF(exports.source());
+            writeStrings(out, exports.targets());
+        }
+        out.writeInt(descriptor.opens().size());
+        for (var opens : descriptor.opens()) {
+            writeEnums(out, opens.modifiers());
+            out.writeUTF(opens.source());
+            writeStrings(out, opens.targets());
+        }
+        writeStrings(out, descriptor.uses());
+        out.writeInt(descriptor.provides().size());
+        for (var provides : descriptor.provides()) {
+            out.writeUTF(provides.service());
+            writeStrings(out, provides.providers());
+        }
+        writeStrings(out, descriptor.packages());
+        writeNullable(out, descriptor.mainClass().orElse(null));
+    }
+
+    private static ModuleDescriptor readDescriptor(final DataInputStream in) throws IOException {
+        final var name = in.readUTF();
+        final var modifiers = readEnums(in, ModuleDescriptor.Modifier.class);
+        final ModuleDescriptor.Builder builder;
+        if (modifiers.contains(ModuleDescriptor.Modifier.AUTOMATIC)) {
+            builder = ModuleDescriptor.newAutomaticModule(name);
+        } else {
+            builder = ModuleDescriptor.newModule(name, modifiers);
+        }
+        final var version = readNullable(in);
+        if (version != null) builder.version(version);
+        for (int i = in.readInt(); i > 0; i--) {
+            final var requiresModifiers = readEnums(in, ModuleDescriptor.Requires.Modifier.class);
+            final var module = in.readUTF();
+            final var compiled = readNullable(in);
+            if (compiled != null) {
+                builder.requires(requiresModifiers, module, ModuleDescriptor.Version.parse(compiled));
+            } else {
+                builder.requires(requiresModifiers, module);
+            }
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            final var exportsModifiers = readEnums(in, ModuleDescriptor.Exports.Modifier.class);
+            final var source = in.readUTF();
+            final var targets = readStrings(in);
+            if (targets.isEmpty()) {
+                builder.exports(exportsModifiers, source);
+            } else {
+                builder.exports(exportsModifiers, source, Set.copyOf(targets));
+            }
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            final var opensModifiers = readEnums(in, ModuleDescriptor.Opens.Modifier.class);
+            final var source = in.readUTF();
+            final var targets = readStrings(in);
+            if (targets.isEmpty()) {
+                builder.opens(opensModifiers, source);
+            } else {
+                builder.opens(opensModifiers, source, Set.copyOf(targets));
+            }
+        }
+        for (var service : readStrings(in)) {
+            builder.uses(service);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            builder.provides(in.readUTF(), readStrings(in));
+        }
+        builder.packages(Set.copyOf(readStrings(in)));
+        final var mainClass = readNullable(in);
+        if (mainClass != null) builder.mainClass(mainClass);
+        return builder.build();
+    }
+
+    private static void writeStrings(final DataOutputStream out, final Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (var string : strings) out.writeUTF(string);
+    }
+
+    private static List<String> readStrings(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final var strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) strings.add(in.readUTF());
+        return strings;
+    }
+
+    private static void writeNullable(final DataOutputStream out, final String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) out.writeUTF(string);
+    }
+
+    private static String readNullable(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static <E extends Enum<E>> void writeEnums(final DataOutputStream out, final Set<E> values) throws IOException {
+        int bits = 0;
+        for (var value : values) bits |= 1 << value.ordinal();
+        out.writeInt(bits);
+    }
+
+    private static <E extends Enum<E>> Set<E> readEnums(final DataInputStream in, final Class<E> type) throws IOException {
+        final int bits = in.readInt();
+        final var values = EnumSet.noneOf(type);
+        for (var value : type.getEnumConstants()) {
+            if ((bits & (1 << value.ordinal())) != 0) values.add(value);
+        }
+        return values;
+    }
+
+    private static Path cacheFile(final Key key) {
+        try {
+            final var hash = MessageDigest.getInstance("SHA-256").digest(key.archive().toString().getBytes(StandardCharsets.UTF_8));
+            return key.directory().resolve(SecureJarVerifier.toHexString(hash) + ".sjhm");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.objectweb.asm.ModuleVisitor;
 import org.objectweb.asm.Opcodes;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.lang.module.ModuleDescriptor;
 import java.net.URI;
@@ -22,17 +23,39 @@ public class ModuleJarMetadata implements JarMetadata {
 
     public ModuleJarMetadata(final URI uri, final Set<String> packages) {
         try (var is = Files.newInputStream(Path.of(uri))) {
-            ClassReader cr = new ClassReader(is);
-            var mcv = new ModuleClassVisitor();
-            cr.accept(mcv, ClassReader.SKIP_CODE);
-            mcv.mfv().packages().addAll(packages);
-            mcv.mfv().builder().packages(mcv.mfv.packages());
-            descriptor = mcv.mfv().builder().build();
+            descriptor = readDescriptor(is, packages);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Reads the descriptor from a module-info class stream, which is closed once read.
+     */
+    public ModuleJarMetadata(final InputStream moduleInfo, final Set<String> packages) {
+        try (var is = moduleInfo) {
+            descriptor = readDescriptor(is, packages);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Takes a descriptor that was read earlier, such as a cached one.
+     */
+    public ModuleJarMetadata(final ModuleDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    private ModuleDescriptor readDescriptor(final InputStream is, final Set<String> packages) throws IOException {
+        ClassReader cr = new ClassReader(is);
+        var mcv = new ModuleClassVisitor();
+        cr.accept(mcv, ClassReader.SKIP_CODE);
+        mcv.mfv().packages().addAll(packages);
+        mcv.mfv().builder().packages(mcv.mfv.packages());
+        return mcv.mfv().builder().build();
+    }
+
     private class ModuleClassVisitor extends ClassVisitor {
         private ModFileVisitor mfv;
 
@@ -10,7 +10,11 @@ import java.util.jar.JarInputStream;
 
 public class SecureJarVerifier {
     private static final boolean USE_UNSAAFE = Boolean.parseBoolean(System.getProperty("securejarhandler.useUnsafeAccessor", "true"));
-    private static IAccessor ACCESSOR = USE_UNSAAFE ? new UnsafeAccessor() : new Reflection();
+
+    // Only set up when someone still asks for JarInputStream's internals, jars are verified by JarSignatures now
+    private static class Accessor {
+        private static final IAccessor ACCESSOR = USE_UNSAAFE ? new UnsafeAccessor() : new Reflection();
+    }
 
     private static final char[] LOOKUP = "0123456789abcdef".toCharArray();
     public static String toHexString(final byte[] bytes) {
@@ -34,7 +38,8 @@ public class SecureJarVerifier {
         if ("manifest.mf".equals(filename) || // Main manifest, which has the file hashes
             filename.endsWith(".sf") ||       // Signature file, which has hashes of the entries in the manifest file
             filename.endsWith(".dsa") ||      // PKCS7 signature, DSA
-            filename.endsWith(".rsa"))        // PKCS7 signature, SHA-256 + RSA
+            filename.endsWith(".rsa") ||      // PKCS7 signature, SHA-256 + RSA
+            filename.endsWith(".ec"))         // PKCS7 signature, EC or EdDSA
             return true;
 
         if (!filename.startsWith("sig-")) // Unspecifed signature format
@@ -53,13 +58,22 @@ public class SecureJarVerifier {
         return true;
     }
 
+    /**
+     * @deprecated Reaches into {@link JarInputStream}'s internals, which needs {@code --add-opens}. Jars are verified
+     * without it now.
+     */
+    @Deprecated
     public static Object getJarVerifier(Object inst) {
-        return ACCESSOR.getJarVerifier(inst);
+        return Accessor.ACCESSOR.getJarVerifier(inst);
     }
-    public static boolean isParsingMeta(Object inst) { return ACCESSOR.isParsingMeta(inst); }
-    public static boolean hasSignatures(Object inst) { return ACCESSOR.hasSignatures(inst); }
-    public static Map<String, CodeSigner[]> getVerifiedSigners(Object inst){ return ACCESSOR.getVerifiedSigners(inst); }
-    public static Map<String, CodeSigner[]> getPendingSigners(Object inst){ return ACCESSOR.getPendingSigners(inst); }
+    @Deprecated
+    public static boolean isParsingMeta(Object inst) { return Accessor.ACCESSOR.isParsingMeta(inst); }
+    @Deprecated
+    public static boolean hasSignatures(Object inst) { return Accessor.ACCESSOR.hasSignatures(inst); }
+    @Deprecated
+    public static Map<String, CodeSigner[]> getVerifiedSigners(Object inst){ return Accessor.ACCESSOR.getVerifiedSigners(inst); }
+    @Deprecated
+    public static Map<String, CodeSigner[]> getPendingSigners(Object inst){ return Accessor.ACCESSOR.getPendingSigners(inst); }
 
     private interface IAccessor {
         Object getJarVerifier(Object inst);
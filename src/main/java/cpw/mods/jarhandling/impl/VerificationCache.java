@@ -0,0 +1,219 @@
+package cpw.mods.jarhandling.impl;
+
+import cpw.mods.niofs.union.UnionFileSystem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the verification results of signed archives on disk between launches, so archives that didn't change aren't
+ * hashed entry by entry again. Enabled by pointing {@code securejarhandler.verificationCache} at a directory.
+ * <p>
+ * Results are looked up by the archive's path, size, modification time and a checksum of its central directory, which
+ * only take a stat and a read of the archive's tail. They are only used once the SHA-256 of the whole archive, the
+ * same hash a {@link cpw.mods.jarhandling.SecureJar.Pin} gives, matches the one they were saved with, as unlike a size,
+ * a timestamp or a CRC it can't be matched by a tampered archive. That hash is worked out on the background pool, so
+ * it never holds up building the jar: until it confirms the cached results, entries are verified as they are loaded,
+ * and background verification waits for it instead of hashing entries the cache may have. Archives without cached
+ * results are hashed when their results are saved.
+ * <p>
+ * The signature files are still checked on every launch; the cache only stands in for the entry digests. Anyone who
+ * can write to the cache directory can mark entries verified, so it must be as trusted as the archives themselves,
+ * like the game directory it usually lives next to. Results are written once background verification finishes and
+ * again when the JVM exits if anything was verified since, and any I/O problem just means a cold start.
+ */
+class VerificationCache {
+    private static final int MAGIC = 0x534A4856; // SJHV
+    private static final int VERSION = 4;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    // Weak, so the cache never keeps a jar's tables alive
+    private static final Map<EntryStatusTable, Tracked> TRACKED = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private record Key(Path directory, Path archive, long size, long modified, long centralDirectory) {}
+
+    /*
+     * A table's key, the states last read from or written to its cache file, and the SHA-256 of the content they were
+     * recorded for once it is known
+     */
+    private static final class Tracked {
+        final Key key;
+        byte[] stored;
+        String sha256;
+
+        Tracked(final Key key, final byte[] stored) {
+            this.key = key;
+            this.stored = stored;
+        }
+    }
+
+    private static final class ShutdownHook {
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(VerificationCache::saveAll, "SecureJar-verification-cache"));
+        }
+
+        static void install() {
+        }
+    }
+
+    private static Path directory() {
+        var dir = System.getProperty("securejarhandler.verificationCache");
+        return dir == null || dir.isEmpty() ? null : Path.of(dir);
+    }
+
+    static boolean isEnabled() {
+        return directory() != null;
+    }
+
+    /**
+     * Fills the table with the results cached for the archive, once its hash confirms it is unchanged, and keeps track
+     * of the table so its results are saved later.
+     *
+     * @return completes once cached results are in the table, or it is clear there are none to use
+     */
+    static CompletableFuture<Void> restore(final Path archive, final EntryStatusTable table) {
+        final var directory = directory();
+        if (directory == null) return DONE;
+        final Key key;
+        try {
+            key = key(directory, archive);
+        } catch (IOException e) {
+            return DONE;
+        }
+        ShutdownHook.install();
+        final var tracked = new Tracked(key, table.snapshotStates());
+        TRACKED.put(table, tracked);
+        final String sha256;
+        final byte[] states;
+        try (var in = new DataInputStream(Files.newInputStream(cacheFile(key)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return DONE;
+            if (!in.readUTF().equals(key.archive().toString()) || in.readLong() != key.size() || in.readLong() != key.modified()
+                    || in.readLong() != key.centralDirectory()) return DONE;
+            sha256 = in.readUTF();
+            final int count = in.readInt();
+            if (count != table.size()) return DONE;
+            states = in.readNBytes(count);
+            final var expectedIds = table.signerIds();
+            if (states.length != count || in.readInt() != expectedIds.length) return DONE;
+            if (!Arrays.equals(in.readNBytes(expectedIds.length), expectedIds)) return DONE;
+        } catch (NoSuchFileException e) {
+            // Nothing cached yet
+            return DONE;
+        } catch (IOException e) {
+            // A broken cache file is as good as none, it is rewritten on save
+            return DONE;
+        }
+        return CompletableFuture.runAsync(() -> confirm(tracked, table, sha256, states), BackgroundVerification.executor());
+    }
+
+    private static void confirm(final Tracked tracked, final EntryStatusTable table, final String sha256, final byte[] states) {
+        try {
+            if (!Jar.sha256(tracked.key.archive()).equals(sha256)) return;
+        } catch (IOException e) {
+            return;
+        }
+        table.restore(states);
+        synchronized (tracked) {
+            tracked.sha256 = sha256;
+            // What the file holds, entries verified in the meantime still get saved
+            tracked.stored = states;
+        }
+    }
+
+    /**
+     * Writes the results known so far for a table handed to {@link #restore}.
+     */
+    static void save(final EntryStatusTable table) {
+        var tracked = TRACKED.get(table);
+        if (tracked != null) save(tracked, table);
+    }
+
+    /**
+     * Writes the results known so far for every table still around that verified anything since it was last read or
+     * written.
+     */
+    static void saveAll() {
+        final ArrayList<Map.Entry<EntryStatusTable, Tracked>> tracked;
+        synchronized (TRACKED) {
+            tracked = new ArrayList<>(TRACKED.entrySet());
+        }
+        for (var entry : tracked) {
+            save(entry.getValue(), entry.getKey());
+        }
+    }
+
+    private static void save(final Tracked tracked, final EntryStatusTable table) {
+        synchronized (tracked) {
+            final var states = table.snapshotStates();
+            if (Arrays.equals(states, tracked.stored)) return;
+            if (write(tracked, table, states)) tracked.stored = states;
+        }
+    }
+
+    private static boolean write(final Tracked tracked, final EntryStatusTable table, final byte[] states) {
+        final var key = tracked.key;
+        try {
+            if (tracked.sha256 == null) {
+                // The states were recorded for the content the key describes, an archive changed since isn't saved
+                final var sha256 = Jar.sha256(key.archive());
+                if (!key.equals(key(key.directory(), key.archive()))) return false;
+                tracked.sha256 = sha256;
+            }
+            Files.createDirectories(key.directory());
+            final var target = cacheFile(key);
+            final var temp = Files.createTempFile(key.directory(), target.getFileName().toString(), ".tmp");
+            try {
+                try (var out = new DataOutputStream(Files.newOutputStream(temp))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(key.archive().toString());
+                    out.writeLong(key.size());
+                    out.writeLong(key.modified());
+                    out.writeLong(key.centralDirectory());
+                    out.writeUTF(tracked.sha256);
+                    out.writeInt(table.size());
+                    out.write(states);
+                    final var signerIds = table.signerIds();
+                    out.writeInt(signerIds.length);
+                    out.write(signerIds);
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return true;
+        } catch (IOException e) {
+            // Best effort, the next launch verifies from scratch
+            return false;
+        }
+    }
+
+    private static Key key(final Path directory, final Path archive) throws IOException {
+        final var path = archive.toAbsolutePath().normalize();
+        final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Key(directory, path, attributes.size(), attributes.lastModifiedTime().toMillis(), UnionFileSystem.centralDirectoryChecksum(path));
+    }
+
+    private static Path cacheFile(final Key key) {
+        try {
+            final var hash = MessageDigest.getInstance("SHA-256").digest(key.archive().toString().getBytes(StandardCharsets.UTF_8));
+            return key.directory().resolve(SecureJarVerifier.toHexString(hash) + ".sjhv");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
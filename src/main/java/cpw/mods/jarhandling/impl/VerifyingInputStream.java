@@ -0,0 +1,95 @@
+package cpw.mods.jarhandling.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Digests an entry's content as it is read, and checks it against the manifest once the end is reached.
+ * The outcome is handed to a callback, and a mismatch fails the read with a {@link SecurityException}, like
+ * {@link java.util.jar.JarFile} does for tampered entries. Streams closed before the end verify nothing.
+ */
+class VerifyingInputStream extends FilterInputStream {
+    interface Result {
+        void verified(boolean valid);
+    }
+
+    private final String name;
+    private final ManifestVerifier.Digests digests;
+    private final Result result;
+    private boolean done;
+
+    VerifyingInputStream(final InputStream in, final String name, final ManifestVerifier.Digests digests, final Result result) {
+        super(in);
+        this.name = name;
+        this.digests = digests;
+        this.result = result;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            finish();
+        } else {
+            digests.update((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int n = in.read(b, off, len);
+        if (n == -1) {
+            finish();
+        } else {
+            digests.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public byte[] readAllBytes() throws IOException {
+        // Keep the wrapped stream's own, usually presized, implementation
+        final var bytes = in.readAllBytes();
+        digests.update(bytes, 0, bytes.length);
+        finish();
+        return bytes;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) return 0;
+        // Skipped bytes still have to be digested
+        final var buffer = new byte[(int) Math.min(n, 8192)];
+        long remaining = n;
+        while (remaining > 0) {
+            final int read = read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if (read == -1) break;
+            remaining -= read;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void finish() {
+        if (done) return;
+        done = true;
+        final boolean valid = digests.matches();
+        result.verified(valid);
+        if (!valid) throw new SecurityException("Digest mismatch for " + name);
+    }
+}
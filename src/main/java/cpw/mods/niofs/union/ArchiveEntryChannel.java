@@ -0,0 +1,172 @@
+package cpw.mods.niofs.union;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read only {@link FileChannel} over a single archive entry.
+ * STORED entries read straight from the archive, so {@link #map} hands out a mapping of the archive region and
+ * positional reads and transfers need no copying. Compressed entries are inflated into memory when opened, and
+ * can't be mapped.
+ */
+class ArchiveEntryChannel extends FileChannel {
+    private final ArchiveIndex index;
+    private final long dataOffset;
+    private final long size;
+    private byte[] data;
+    private long position;
+
+    private ArchiveEntryChannel(final ArchiveIndex index, final long dataOffset, final long size, final byte[] data) {
+        this.index = index;
+        this.dataOffset = dataOffset;
+        this.size = size;
+        this.data = data;
+    }
+
+    static ArchiveEntryChannel open(final ArchiveIndex index, final ArchiveIndex.Entry entry) throws IOException {
+        if (entry.method() == ArchiveIndex.STORED) {
+            return new ArchiveEntryChannel(index, index.dataOffset(entry), entry.size(), null);
+        }
+        try (var is = index.newInputStream(entry)) {
+            final var bytes = is.readAllBytes();
+            return new ArchiveEntryChannel(index, -1, bytes.length, bytes);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) throw new ClosedChannelException();
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        final int n = read(dst, position);
+        if (n > 0) position += n;
+        return n;
+    }
+
+    @Override
+    public synchronized long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining()) continue;
+            final int n = read(dsts[i]);
+            if (n == -1) return total == 0 ? -1 : total;
+            total += n;
+            if (dsts[i].hasRemaining()) break;
+        }
+        return total;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, final long position) throws IOException {
+        if (position < 0) throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if (position >= size) return -1;
+        final int len = (int) Math.min(dst.remaining(), size - position);
+        if (data != null) {
+            dst.put(data, (int) position, len);
+            return len;
+        }
+        final int limit = dst.limit();
+        dst.limit(dst.position() + len);
+        try {
+            return index.read(dst, dataOffset + position);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(final long newPosition) throws IOException {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+        if (position < 0 || count < 0) throw new IllegalArgumentException();
+        ensureOpen();
+        if (position >= size) return 0;
+        final long len = Math.min(count, size - position);
+        if (data != null) {
+            return target.write(ByteBuffer.wrap(data, (int) position, (int) len));
+        }
+        return index.transferTo(dataOffset + position, len, target);
+    }
+
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+        ensureOpen();
+        if (mode != MapMode.READ_ONLY) throw new NonWritableChannelException();
+        if (position < 0 || size < 0 || position + size > this.size) throw new IllegalArgumentException("Mapped region is outside the entry");
+        if (data != null) throw new UnsupportedOperationException("Compressed archive entries can't be mapped");
+        return index.map(dataOffset + position, size);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(final ByteBuffer src, final long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(final ReadableByteChannel src, final long position, final long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(final boolean metaData) throws IOException {
+        ensureOpen();
+    }
+
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        // The archive channel is shared with the rest of the index, so only drop our own state
+        data = null;
+    }
+}
@@ -0,0 +1,451 @@
+package cpw.mods.niofs.union;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * In memory index of a zip archive's central directory.
+ * Maps every entry name, and every directory implied by those names, to its {@link Entry}, so existence and
+ * type checks are a single hash lookup instead of a round trip through the embedded zip filesystem.
+ * Names are stored without leading or trailing slashes, the archive root is the empty string.
+ */
+class ArchiveIndex {
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_LEN = 22;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_LOCATOR_LEN = 20;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_LEN = 46;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LEN = 30;
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MAX_POOLED_INFLATERS = 16;
+    private static final ConcurrentLinkedDeque<Inflater> INFLATERS = new ConcurrentLinkedDeque<>();
+
+    static final Entry DIRECTORY = new Entry(-1, 0, 0, 0, -1);
+
+    /**
+     * A file in the archive, offsets are absolute positions in the archive file.
+     */
+    record Entry(int method, long compressedSize, long size, long crc, long headerOffset) {
+        boolean isDirectory() {
+            return this == DIRECTORY;
+        }
+    }
+
+    private final Path archive;
+    private final Map<String, Entry> entries;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+    private int references = 1;
+
+    private ArchiveIndex(final Path archive, final Map<String, Entry> entries) {
+        this.archive = archive;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the central directory of the archive. Archives we can't parse, such as ones with a layout the zip
+     * filesystem tolerates but we don't, return empty so callers fall back to the zip filesystem.
+     */
+    static Optional<ArchiveIndex> tryRead(final Path archive) {
+        try (var channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            return Optional.of(new ArchiveIndex(archive, readCentralDirectory(channel)));
+        } catch (IOException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    Path archive() {
+        return archive;
+    }
+
+    /**
+     * @return the entry, {@link #DIRECTORY} for directories, or null if nothing exists with that name
+     */
+    Entry find(final String name) {
+        return entries.get(name);
+    }
+
+    Set<Map.Entry<String, Entry>> entries() {
+        return entries.entrySet();
+    }
+
+    /**
+     * Opens a stream over the entry's uncompressed content, reading straight from the archive.
+     */
+    InputStream newInputStream(final Entry entry) throws IOException {
+        if (entry.isDirectory()) throw new IOException("Can't open a stream to a directory");
+        if (entry.method() != STORED && entry.method() != DEFLATED) throw new ZipException("Unsupported compression method " + entry.method());
+        return new EntryInputStream(this, entry, dataOffset(entry));
+    }
+
+    /**
+     * @return the absolute position of the entry's data, just past its local file header
+     */
+    long dataOffset(final Entry entry) throws IOException {
+        final var header = ByteBuffer.allocate(LOC_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (read(header, entry.headerOffset() + header.position()) < 0) throw new ZipException("Unexpected end of archive");
+        }
+        if (header.getInt(0) != LOC_SIG) throw new ZipException("Invalid local file header");
+        return entry.headerOffset() + LOC_LEN + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * Positional read from the archive through a channel shared by every stream of this index.
+     */
+    int read(final ByteBuffer dst, final long position) throws IOException {
+        while (true) {
+            final var ch = channel();
+            try {
+                return ch.read(dst, position);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // Another thread was interrupted mid read, which closes the shared channel, so reopen it
+                if (closed) throw e;
+            }
+        }
+    }
+
+    MappedByteBuffer map(final long position, final long size) throws IOException {
+        while (true) {
+            final var ch = channel();
+            try {
+                return ch.map(FileChannel.MapMode.READ_ONLY, position, size);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (closed) throw e;
+            }
+        }
+    }
+
+    long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+        while (true) {
+            final var ch = channel();
+            try {
+                return ch.transferTo(position, count, target);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (closed) throw e;
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        var ch = this.channel;
+        if (ch != null && ch.isOpen()) return ch;
+        synchronized (this) {
+            if (closed) throw new ClosedChannelException();
+            ch = this.channel;
+            if (ch == null || !ch.isOpen()) {
+                ch = FileChannel.open(archive, StandardOpenOption.READ);
+                this.channel = ch;
+            }
+            return ch;
+        }
+    }
+
+    /**
+     * Adds a user of this index, such as a union filesystem that flattened the one owning it.
+     * Each user closes the index once, and the archive channel is released when the last one does.
+     */
+    synchronized void retain() {
+        if (references++ == 0) closed = false;
+    }
+
+    synchronized void close() throws IOException {
+        if (references == 0 || --references > 0) return;
+        closed = true;
+        if (channel != null) channel.close();
+    }
+
+    private static Inflater getInflater() {
+        final var inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private static void releaseInflater(final Inflater inflater) {
+        if (INFLATERS.size() < MAX_POOLED_INFLATERS) {
+            inflater.reset();
+            INFLATERS.push(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+
+    private static class EntryInputStream extends InputStream {
+        private final ArchiveIndex index;
+        private final long end;
+        private long position;
+        private long remaining;
+        private Inflater inflater;
+        private ByteBuffer input;
+        private boolean eof;
+        private boolean closed;
+        private byte[] single;
+
+        EntryInputStream(final ArchiveIndex index, final Entry entry, final long dataOffset) {
+            this.index = index;
+            this.position = dataOffset;
+            this.end = dataOffset + entry.compressedSize();
+            this.remaining = entry.size();
+            if (entry.method() == DEFLATED) {
+                this.inflater = getInflater();
+                this.input = ByteBuffer.allocate((int) Math.max(1, Math.min(8192, entry.compressedSize())));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (single == null) single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            if (remaining <= 0) return -1;
+            final int max = (int) Math.min(len, remaining);
+            final int n = inflater == null ? readStored(b, off, max) : readDeflated(b, off, max);
+            if (n == -1) {
+                remaining = 0;
+                return -1;
+            }
+            remaining -= n;
+            return n;
+        }
+
+        private int readStored(final byte[] b, final int off, final int len) throws IOException {
+            final int n = index.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) position += n;
+            return n;
+        }
+
+        private int readDeflated(final byte[] b, final int off, final int len) throws IOException {
+            try {
+                while (true) {
+                    final int n = inflater.inflate(b, off, len);
+                    if (n > 0) return n;
+                    if (inflater.finished() || inflater.needsDictionary()) return -1;
+                    if (inflater.needsInput()) fill();
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() == null ? "Invalid deflate data" : e.getMessage());
+            }
+        }
+
+        private void fill() throws IOException {
+            input.clear();
+            if (position >= end) {
+                // The inflater may need one trailing byte past the end of the compressed data, as in ZipFile
+                if (eof) throw new ZipException("Unexpected end of deflate data");
+                eof = true;
+                input.put((byte) 0);
+            } else {
+                input.limit((int) Math.min(input.capacity(), end - position));
+                final int n = index.read(input, position);
+                if (n < 0) throw new ZipException("Unexpected end of archive");
+                position += n;
+            }
+            inflater.setInput(input.array(), 0, input.position());
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public byte[] readAllBytes() throws IOException {
+            if (remaining > MAX_ARRAY_SIZE) return super.readAllBytes();
+            final var data = new byte[(int) remaining];
+            int total = 0;
+            while (total < data.length) {
+                final int n = read(data, total, data.length - total);
+                if (n == -1) return Arrays.copyOf(data, total);
+                total += n;
+            }
+            return data;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            if (inflater != null || n <= 0) return super.skip(n);
+            final long skipped = Math.min(n, remaining);
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (inflater != null) {
+                releaseInflater(inflater);
+                inflater = null;
+            }
+        }
+    }
+
+    /**
+     * Where the central directory is, as found from the end records.
+     *
+     * @param offset the absolute position of the central directory, past anything prepended to the archive
+     * @param shift how far anything prepended to the archive moved every recorded offset
+     */
+    record CentralDirectory(long entryCount, long size, long offset, long shift) {}
+
+    static CentralDirectory locateCentralDirectory(final FileChannel channel) throws IOException {
+        final long fileSize = channel.size();
+        final int tailLen = (int) Math.min(fileSize, END_LEN + 0xFFFF);
+        final var tail = read(channel, fileSize - tailLen, tailLen);
+
+        int endPos = -1;
+        for (int i = tailLen - END_LEN; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos == -1) throw new IOException("Missing end of central directory");
+
+        long entryCount = tail.getShort(endPos + 10) & 0xFFFF;
+        long cenSize = tail.getInt(endPos + 12) & ZIP64_MAGIC;
+        long cenOffset = tail.getInt(endPos + 16) & ZIP64_MAGIC;
+        long endRecord = fileSize - tailLen + endPos;
+        if (entryCount == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+            final var locator = read(channel, endRecord - ZIP64_LOCATOR_LEN, ZIP64_LOCATOR_LEN);
+            if (locator.getInt(0) != ZIP64_LOCATOR_SIG) throw new IOException("Missing zip64 end of central directory locator");
+            final long zip64End = locator.getLong(8);
+            final var end64 = read(channel, zip64End, 56);
+            if (end64.getInt(0) != ZIP64_END_SIG) throw new IOException("Invalid zip64 end of central directory");
+            entryCount = end64.getLong(32);
+            cenSize = end64.getLong(40);
+            cenOffset = end64.getLong(48);
+            endRecord = zip64End;
+        }
+        // Anything prepended to the archive, such as a launcher script, shifts every recorded offset
+        final long shift = endRecord - cenSize - cenOffset;
+        if (shift < 0 || cenSize > Integer.MAX_VALUE) throw new IOException("Invalid central directory");
+        return new CentralDirectory(entryCount, cenSize, cenOffset + shift, shift);
+    }
+
+    /**
+     * A CRC32C of everything from the start of the central directory to the end of the archive, that is every name
+     * and content CRC along with the end records. It changes with the archive's content while only its end is read.
+     */
+    static long centralDirectoryChecksum(final Path archive) throws IOException {
+        try (var channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            final var directory = locateCentralDirectory(channel);
+            final var crc = new CRC32C();
+            final var buffer = ByteBuffer.allocate(1 << 16);
+            for (long position = directory.offset(); ; ) {
+                final int read = channel.read(buffer.clear(), position);
+                if (read < 0) break;
+                crc.update(buffer.flip());
+                position += read;
+            }
+            return crc.getValue();
+        } catch (RuntimeException e) {
+            // Offsets pointing outside the end records
+            throw new ZipException("Invalid central directory in " + archive);
+        }
+    }
+
+    private static Map<String, Entry> readCentralDirectory(final FileChannel channel) throws IOException {
+        final var directory = locateCentralDirectory(channel);
+        final long entryCount = directory.entryCount();
+        final long shift = directory.shift();
+
+        final var cen = read(channel, directory.offset(), (int) directory.size());
+        final var entries = new HashMap<String, Entry>((int) Math.min(entryCount * 2, Integer.MAX_VALUE - 8));
+        entries.put("", DIRECTORY);
+        int pos = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (cen.getInt(pos) != CEN_SIG) throw new IOException("Invalid central directory header");
+            final int method = cen.getShort(pos + 10) & 0xFFFF;
+            final long crc = cen.getInt(pos + 16) & ZIP64_MAGIC;
+            long csize = cen.getInt(pos + 20) & ZIP64_MAGIC;
+            long size = cen.getInt(pos + 24) & ZIP64_MAGIC;
+            final int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            final int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            final int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            long locOffset = cen.getInt(pos + 42) & ZIP64_MAGIC;
+
+            final var nameBytes = new byte[nameLen];
+            cen.get(pos + CEN_LEN, nameBytes);
+            var name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            if (size == ZIP64_MAGIC || csize == ZIP64_MAGIC || locOffset == ZIP64_MAGIC) {
+                int extra = pos + CEN_LEN + nameLen;
+                final int extraEnd = extra + extraLen;
+                while (extra + 4 <= extraEnd) {
+                    final int tag = cen.getShort(extra) & 0xFFFF;
+                    final int len = cen.getShort(extra + 2) & 0xFFFF;
+                    if (tag == ZIP64_EXTRA) {
+                        int field = extra + 4;
+                        if (size == ZIP64_MAGIC) { size = cen.getLong(field); field += 8; }
+                        if (csize == ZIP64_MAGIC) { csize = cen.getLong(field); field += 8; }
+                        if (locOffset == ZIP64_MAGIC) { locOffset = cen.getLong(field); }
+                        break;
+                    }
+                    extra += 4 + len;
+                }
+            }
+            pos += CEN_LEN + nameLen + extraLen + commentLen;
+
+            while (name.startsWith("/")) name = name.substring(1);
+            if (name.endsWith("/")) {
+                name = name.substring(0, name.length() - 1);
+                entries.put(name, DIRECTORY);
+            } else {
+                entries.put(name, new Entry(method, csize, size, crc, locOffset + shift));
+            }
+            // Zips aren't required to contain directory entries, so record the implied parents
+            for (int slash = name.lastIndexOf('/'); slash > 0; slash = name.lastIndexOf('/', slash - 1)) {
+                if (entries.putIfAbsent(name.substring(0, slash), DIRECTORY) != null) break;
+            }
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length) throws IOException {
+        final var buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) throw new IOException("Unexpected end of archive");
+        }
+        return buf.flip();
+    }
+}
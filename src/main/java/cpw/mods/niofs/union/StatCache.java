@@ -0,0 +1,55 @@
+package cpw.mods.niofs.union;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the attributes of paths on the default filesystem, so lookups against directory bases cost at most one
+ * {@code stat} per path per staleness window instead of an existence check followed by an attribute read.
+ * Missing paths are cached too, as most lookups in a union miss most of its bases.
+ * <p>
+ * Off unless {@code securejarhandler.statCacheMillis} is set, as a file written into a directory base stays invisible
+ * for up to that many milliseconds, which only suits directories nobody writes to while the game runs. The window is
+ * read when a filesystem is created. Expired entries are read again, and the whole cache is dropped once it holds too
+ * many paths.
+ */
+class StatCache {
+    private static final int MAX_ENTRIES = 1 << 16;
+
+    private record Stat(BasicFileAttributes attributes, long readAt) {}
+
+    private final ConcurrentHashMap<Path, Stat> stats = new ConcurrentHashMap<>();
+    private final long staleness = TimeUnit.MILLISECONDS.toNanos(Long.getLong("securejarhandler.statCacheMillis", 0));
+
+    /**
+     * @return the attributes of the path, or null if it doesn't exist or can't be read
+     */
+    BasicFileAttributes get(final Path path) {
+        if (staleness <= 0) return read(path);
+        final long now = System.nanoTime();
+        final var cached = stats.get(path);
+        if (cached != null && now - cached.readAt() < staleness) {
+            return cached.attributes();
+        }
+        final var attributes = read(path);
+        if (stats.size() >= MAX_ENTRIES) stats.clear();
+        stats.put(path, new Stat(attributes, now));
+        return attributes;
+    }
+
+    void clear() {
+        stats.clear();
+    }
+
+    private static BasicFileAttributes read(final Path path) {
+        try {
+            return path.getFileSystem().provider().readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // NoSuchFileException in the common case, anything else is as good as missing for a lookup
+            return null;
+        }
+    }
+}
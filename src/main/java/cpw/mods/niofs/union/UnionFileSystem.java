@@ -1,39 +1,52 @@
 package cpw.mods.niofs.union;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.Spliterator;
-import java.util.Spliterators;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 public class UnionFileSystem extends FileSystem {
     private static final MethodHandle ZIPFS_EXISTS;
@@ -72,12 +85,14 @@ public class UnionFileSystem extends FileSystem {
         }
     }
     private final UnionPath root = new UnionPath(this, "/");
-    private final UnionPath notExistingPath = new UnionPath(this, "/SNOWMAN");
     private final UnionFileSystemProvider provider;
     private final String key;
     private final List<Path> basepaths;
+    private final List<Base> bases;
     private final BiPredicate<String, String> pathFilter;
     private final Map<Path,EmbeddedFileSystemMetadata> embeddedFileSystems;
+    private final StatCache statCache = new StatCache();
+    private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
 
     public Path getPrimaryPath() {
         return basepaths.get(basepaths.size()-1);
@@ -91,25 +106,80 @@ public class UnionFileSystem extends FileSystem {
         return this.key;
     }
 
-    private record EmbeddedFileSystemMetadata(Path path, FileSystem fs) {}
+    private record EmbeddedFileSystemMetadata(Path path, FileSystem fs, ArchiveIndex index) {}
+
+    /**
+     * A base path in search order, with the filter already bound to it. Archive bases look names up under
+     * {@code prefix} in their embedded filesystem. A null filter accepts everything.
+     */
+    private record Base(Path path, EmbeddedFileSystemMetadata embedded, String prefix, Predicate<String> filter) {}
 
     public UnionFileSystem(final UnionFileSystemProvider provider, final BiPredicate<String, String> pathFilter, final String key, final Path... basepaths) {
         this.pathFilter = pathFilter;
         this.provider = provider;
         this.key = key;
-        this.basepaths = IntStream.range(0, basepaths.length)
+        var existing = IntStream.range(0, basepaths.length)
                 .mapToObj(i->basepaths[basepaths.length - i - 1])
                 .filter(Files::exists)
                 .toList(); // we flip the list so later elements are first in search order.
-        this.embeddedFileSystems = this.basepaths.stream().filter(path -> !Files.isDirectory(path))
+        this.embeddedFileSystems = existing.stream().filter(path -> !(path instanceof UnionPath) && !Files.isDirectory(path))
                 .map(UnionFileSystem::openFileSystem)
                 .flatMap(Optional::stream)
                 .collect(Collectors.toMap(EmbeddedFileSystemMetadata::path, Function.identity()));
+        // Nested unions are flattened into the bases lookups walk, but the paths we were given stay what we report
+        this.basepaths = existing;
+        this.bases = existing.stream()
+                .flatMap(this::toBases)
+                .toList();
+    }
+
+    /*
+     * A union path is a view onto another union filesystem, so rather than recursing into it on every lookup we
+     * splice its bases into ours, composing its filter with ours. Lookup cost then stays flat however deep
+     * unions are stacked.
+     */
+    private Stream<Base> toBases(final Path path) {
+        final var outerFilter = bindFilter(this.pathFilter, path);
+        if (path instanceof UnionPath up) {
+            final var inner = up.getFileSystem();
+            final var innerName = inner.toName(up);
+            final var prefix = innerName.isEmpty() ? "" : innerName + SEP_STRING;
+            return inner.bases.stream()
+                    .filter(base -> base.embedded() != null || prefix.isEmpty() || Files.exists(base.path().resolve(innerName)))
+                    .map(base -> {
+                        if (base.embedded() != null && base.embedded().index() != null) {
+                            base.embedded().index().retain();
+                        }
+                        final var innerFilter = base.filter();
+                        final Predicate<String> filter;
+                        if (innerFilter == null) {
+                            filter = outerFilter;
+                        } else {
+                            final Predicate<String> prefixed = prefix.isEmpty() ? innerFilter : name -> innerFilter.test(name.equals(SEP_STRING) ? prefix : prefix + name);
+                            filter = outerFilter == null ? prefixed : outerFilter.and(prefixed);
+                        }
+                        if (base.embedded() != null) {
+                            return new Base(base.path(), base.embedded(), base.prefix() + prefix, filter);
+                        } else {
+                            return new Base(prefix.isEmpty() ? base.path() : base.path().resolve(innerName), null, "", filter);
+                        }
+                    });
+        }
+        return Stream.of(new Base(path, embeddedFileSystems.get(path), "", outerFilter));
+    }
+
+    private static Predicate<String> bindFilter(final BiPredicate<String, String> pathFilter, final Path basePath) {
+        if (pathFilter == null) return null;
+        String sBasePath = basePath.toString().replace('\\', '/');
+        if (sBasePath.length() > 1 && sBasePath.startsWith("/"))
+            sBasePath = sBasePath.substring(1);
+        final var boundBasePath = sBasePath;
+        return name -> pathFilter.test(name, boundBasePath);
     }
 
     private static Optional<EmbeddedFileSystemMetadata> openFileSystem(final Path path) {
         try {
-            return Optional.of(new EmbeddedFileSystemMetadata(path, FileSystems.newFileSystem(path)));
+            return Optional.of(new EmbeddedFileSystemMetadata(path, FileSystems.newFileSystem(path), ArchiveIndex.tryRead(path).orElse(null)));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -120,9 +190,27 @@ public class UnionFileSystem extends FileSystem {
         return provider;
     }
 
+    /**
+     * Runs {@code listener} when this filesystem is closed, so whatever holds on to it can let go.
+     */
+    public void addCloseListener(final Runnable listener) {
+        closeListeners.add(listener);
+    }
+
     @Override
     public void close() {
         provider().removeFileSystem(this);
+        closeListeners.forEach(Runnable::run);
+        statCache.clear();
+        for (var base : bases) {
+            if (base.embedded() != null && base.embedded().index() != null) {
+                try {
+                    base.embedded().index().close();
+                } catch (IOException e) {
+                    // Nothing useful to do, the index only holds a read only channel
+                }
+            }
+        }
     }
 
     @Override
@@ -195,8 +283,8 @@ public class UnionFileSystem extends FileSystem {
 
     private Optional<BasicFileAttributes> getFileAttributes(final Path path) {
         try {
-            if (path.getFileSystem() == FileSystems.getDefault() && !path.toFile().exists()) {
-                return Optional.empty();
+            if (path.getFileSystem() == FileSystems.getDefault()) {
+                return Optional.ofNullable(statCache.get(path));
             } else if (path.getFileSystem().provider().getScheme().equals("jar") && !zipFsExists(path)) {
                 return Optional.empty();
             } else {
@@ -207,14 +295,6 @@ public class UnionFileSystem extends FileSystem {
         }
     }
 
-    private Optional<Path> findFirstPathAt(final UnionPath path) {
-        return this.basepaths.stream()
-                .map(p->toRealPath(p , path))
-                .filter(p->p!=notExistingPath)
-                .filter(Files::exists)
-                .findFirst();
-    }
-
     private static boolean zipFsExists(Path path) {
         try {
             return (boolean) ZIPFS_EXISTS.invoke(path);
@@ -223,43 +303,95 @@ public class UnionFileSystem extends FileSystem {
         }
     }
     private Optional<Path> findFirstFiltered(final UnionPath path) {
-        for (Path p : this.basepaths) {
-            Path realPath = toRealPath(p, path);
-            if (realPath != notExistingPath && testFilter(realPath, p)) {
-                if (realPath.getFileSystem() == FileSystems.getDefault()) {
-                    if (realPath.toFile().exists()) {
-                        return Optional.of(realPath);
-                    }
-                } else if (realPath.getFileSystem().provider().getScheme().equals("jar")) {
-                    if (zipFsExists(realPath)) {
-                        return Optional.of(realPath);
-                    }
-                } else if (Files.exists(realPath)) {
-                    return Optional.of(realPath);
+        final var name = toName(path);
+        final var base = findFirstBase(name);
+        return base == null ? Optional.empty() : Optional.of(toRealPath(base, name));
+    }
+
+    /**
+     * Tests a batch of names for existence, in one pass and without creating {@link UnionPath}s or throwing for
+     * missing entries. Archive bases are answered from their central directory index.
+     *
+     * @param names relative names, such as {@code cpw/mods/Foo.class}
+     * @return a set with bit {@code i} set if {@code names.get(i)} exists
+     */
+    public BitSet existsAll(final List<String> names) {
+        return existsAll(names, null);
+    }
+
+    /**
+     * Tests a batch of names for existence, see {@link #existsAll(List)}.
+     *
+     * @param names relative names, such as {@code cpw/mods/Foo.class}
+     * @param winners if not null, receives at index {@code i} the base path {@code names.get(i)} was found in, or null
+     * @return a set with bit {@code i} set if {@code names.get(i)} exists
+     */
+    public BitSet existsAll(final List<String> names, final Path[] winners) {
+        if (winners != null && winners.length < names.size())
+            throw new IllegalArgumentException("Winners array is smaller than the list of names");
+        final var found = new BitSet(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            final var base = findFirstBase(normalizeName(names.get(i)));
+            if (base != null) found.set(i);
+            if (winners != null) winners[i] = base == null ? null : base.path();
+        }
+        return found;
+    }
+
+    private String normalizeName(final String name) {
+        // Names are almost always clean already, only build a path to normalize the odd ones
+        int segment = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i == name.length() || name.charAt(i) == '/') {
+                final int len = i - segment;
+                if (len == 0 || (len == 1 && name.charAt(segment) == '.') || (len == 2 && name.startsWith("..", segment))) {
+                    final var normalized = getPath(name).normalize().toString();
+                    return normalized.startsWith(SEP_STRING) ? normalized.substring(1) : normalized;
                 }
+                segment = i + 1;
+            } else if (name.charAt(i) == '\\') {
+                return normalizeName(name.replace('\\', '/'));
             }
         }
-        return Optional.empty();
+        return name;
     }
 
-    private <T> Stream<T> streamPathList(final Function<Path,Optional<T>> function) {
-        return this.basepaths.stream()
-                .map(function)
-                .flatMap(Optional::stream);
+    /**
+     * @return the first base, in search order, that contains the name and accepts it through its filter
+     */
+    private Base findFirstBase(final String name) {
+        for (Base base : this.bases) {
+            final var index = base.embedded() != null ? base.embedded().index() : null;
+            if (index != null) {
+                final var entry = index.find(base.prefix() + name);
+                if (entry != null && testFilter(name, entry.isDirectory(), base)) {
+                    return base;
+                }
+            } else if (base.filter() == null) {
+                final var realPath = toRealPath(base, name);
+                if (getFileAttributes(realPath).isPresent()) {
+                    return base;
+                }
+            } else {
+                final var attributes = getFileAttributes(toRealPath(base, name));
+                if (attributes.isPresent() && testFilter(name, attributes.get().isDirectory(), base)) {
+                    return base;
+                }
+            }
+        }
+        return null;
     }
 
     @SuppressWarnings("unchecked")
     public <A extends BasicFileAttributes> A readAttributes(final UnionPath path, final Class<A> type, final LinkOption... options) throws IOException {
         if (type == BasicFileAttributes.class) {
-            // We need to run the test on the actual path,
-            for (Path base : this.basepaths) {
-                // We need to know the full path for the filter
-                Path realPath = toRealPath(base, path);
-                if (realPath != notExistingPath) {
-                    Optional<BasicFileAttributes> fileAttributes = this.getFileAttributes(realPath);
-                        if (fileAttributes.isPresent() && testFilter(realPath, base)) {
-                        return (A) fileAttributes.get();
-                    }
+            final var name = toName(path);
+            for (Base base : this.bases) {
+                final var index = base.embedded() != null ? base.embedded().index() : null;
+                if (index != null && index.find(base.prefix() + name) == null) continue;
+                Optional<BasicFileAttributes> fileAttributes = this.getFileAttributes(toRealPath(base, name));
+                if (fileAttributes.isPresent() && testFilter(name, fileAttributes.get().isDirectory(), base)) {
+                    return (A) fileAttributes.get();
                 }
             }
             throw new NoSuchFileException(path.toString());
@@ -273,7 +405,7 @@ public class UnionFileSystem extends FileSystem {
             findFirstFiltered(p).ifPresentOrElse(path-> {
                 try {
                     if (modes.length == 0 && path.getFileSystem() == FileSystems.getDefault()) {
-                        if (!path.toFile().exists()) {
+                        if (statCache.get(path) == null) {
                             throw new UncheckedIOException(new NoSuchFileException(p.toString()));
                         }
                     } else {
@@ -290,14 +422,11 @@ public class UnionFileSystem extends FileSystem {
         }
     }
 
-    private Path toRealPath(final Path basePath, final UnionPath path) {
-        var embeddedpath = path.isAbsolute() ? this.root.relativize(path) : path;
-        var resolvepath = embeddedpath.normalize().toString();
-        var efsm = embeddedFileSystems.get(basePath);
-        if (efsm != null) {
-            return efsm.fs().getPath(resolvepath);
+    private Path toRealPath(final Base base, final String name) {
+        if (base.embedded() != null) {
+            return base.embedded().fs().getPath(base.prefix() + name);
         } else {
-            return basePath.resolve(resolvepath);
+            return base.path().resolve(name);
         }
     }
 
@@ -319,27 +448,124 @@ public class UnionFileSystem extends FileSystem {
         }
     }
 
+    public InputStream newInputStream(final UnionPath path) throws IOException {
+        final var name = toName(path);
+        final var base = findFirstBase(name);
+        if (base == null) throw new NoSuchFileException(path.toString());
+        final var index = base.embedded() != null ? base.embedded().index() : null;
+        if (index != null) {
+            final var entry = index.find(base.prefix() + name);
+            if (entry.isDirectory()) throw new FileSystemException(path.toString(), null, "is a directory");
+            return index.newInputStream(entry);
+        }
+        final var realPath = toRealPath(base, name);
+        if (realPath.getFileSystem() == FileSystems.getDefault()) {
+            return new SizedFileInputStream(realPath.toFile());
+        }
+        return Files.newInputStream(realPath);
+    }
+
+    /**
+     * Opens a read only {@link FileChannel}. Files in directory bases get their real channel, archive entries get a
+     * channel onto the archive that can {@link FileChannel#map map} STORED entries.
+     */
+    public FileChannel newFileChannel(final UnionPath path) throws IOException {
+        final var name = toName(path);
+        final var base = findFirstBase(name);
+        if (base == null) throw new NoSuchFileException(path.toString());
+        final var index = base.embedded() != null ? base.embedded().index() : null;
+        if (index != null) {
+            final var entry = index.find(base.prefix() + name);
+            if (entry.isDirectory()) throw new FileSystemException(path.toString(), null, "is a directory");
+            return ArchiveEntryChannel.open(index, entry);
+        }
+        final var realPath = toRealPath(base, name);
+        return realPath.getFileSystem().provider().newFileChannel(realPath, Set.of(StandardOpenOption.READ));
+    }
+
+    /**
+     * Reads the matching entries of one archive base straight from its central directory, ignoring the union and
+     * its filter. Only the matching entries are read, so this is cheap however large the archive is.
+     *
+     * @param basePath one of the archive paths this filesystem was created with
+     * @param names selects entry names, such as {@code META-INF/MANIFEST.MF}
+     * @return the content of the matching files keyed by name, or null if the base isn't an archive we have indexed
+     */
+    public Map<String, byte[]> readArchiveEntries(final Path basePath, final Predicate<String> names) throws IOException {
+        final var normalized = basePath instanceof UnionPath ? basePath : basePath.toAbsolutePath().normalize();
+        for (final var base : bases) {
+            if (!base.path().equals(normalized) || !base.prefix().isEmpty()) continue;
+            final var index = base.embedded() != null ? base.embedded().index() : null;
+            if (index == null) return null;
+            final var found = new TreeMap<String, byte[]>();
+            for (final var entry : index.entries()) {
+                if (entry.getValue().isDirectory() || !names.test(entry.getKey())) continue;
+                try (var is = index.newInputStream(entry.getValue())) {
+                    found.put(entry.getKey(), is.readAllBytes());
+                }
+            }
+            return found;
+        }
+        return null;
+    }
+
+    /**
+     * {@link FileInputStream} that reads everything in one correctly sized read, rather than growing a buffer.
+     */
+    private static class SizedFileInputStream extends FileInputStream {
+        SizedFileInputStream(final File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public byte[] readAllBytes() throws IOException {
+            final var channel = getChannel();
+            final long remaining = channel.size() - channel.position();
+            if (remaining <= 0 || remaining > Integer.MAX_VALUE - 8) return super.readAllBytes();
+            final var data = new byte[(int) remaining];
+            final int read = readNBytes(data, 0, data.length);
+            if (read < data.length) return Arrays.copyOf(data, read);
+            final int next = read();
+            if (next == -1) return data;
+            // The file grew while we were reading it
+            final var rest = super.readAllBytes();
+            final var all = Arrays.copyOf(data, data.length + 1 + rest.length);
+            all[data.length] = (byte) next;
+            System.arraycopy(rest, 0, all, data.length + 1, rest.length);
+            return all;
+        }
+    }
+
+    private String toName(final UnionPath path) {
+        var embeddedpath = path.isAbsolute() ? this.root.relativize(path) : path;
+        return embeddedpath.normalize().toString();
+    }
+
     public DirectoryStream<Path> newDirStream(final UnionPath path, final DirectoryStream.Filter<? super Path> filter) throws IOException {
+        final var name = toName(path);
+        final var dirParts = name.isEmpty() ? new String[0] : name.split(SEP_STRING);
         final var allpaths = new LinkedHashSet<Path>();
-        for (final var bp : basepaths) {
-            final var dir = toRealPath(bp, path);
-            if (dir == notExistingPath) {
-                continue;
-            } else if (dir.getFileSystem() == FileSystems.getDefault() && !dir.toFile().exists()) {
-                continue;
-            } else if (dir.getFileSystem().provider().getScheme() == "jar" && !zipFsExists(dir)) {
+        for (final var base : bases) {
+            final var index = base.embedded() != null ? base.embedded().index() : null;
+            if (index != null && index.find(base.prefix() + name) == null) continue;
+            final var dir = toRealPath(base, name);
+            if (dir.getFileSystem() == FileSystems.getDefault()) {
+                final var attributes = statCache.get(dir);
+                if (attributes == null || !attributes.isDirectory()) continue;
+            } else if (dir.getFileSystem().provider().getScheme().equals("jar") && !zipFsExists(dir)) {
                 continue;
             } else if (Files.notExists(dir)) {
                 continue;
             }
-            final var isSimple = embeddedFileSystems.containsKey(bp);
             try (final var ds = Files.newDirectoryStream(dir, filter)) {
-                StreamSupport.stream(ds.spliterator(), false)
-                        .filter(p->testFilter(p, bp))
-                        .map(other -> StreamSupport.stream(Spliterators.spliteratorUnknownSize((isSimple ? other : bp.relativize(other)).iterator(), Spliterator.ORDERED), false)
-                                .map(Path::getFileName).map(Path::toString).toArray(String[]::new))
-                        .map(this::fastPath)
-                        .forEachOrdered(allpaths::add);
+                for (final var child : ds) {
+                    final var childName = child.getFileName().toString();
+                    final var childParts = Arrays.copyOf(dirParts, dirParts.length + 1);
+                    childParts[dirParts.length] = childName;
+                    if (testFilter(name.isEmpty() ? childName : name + SEP_STRING + childName, child, base)) {
+                        allpaths.add(fastPath(childParts));
+                    }
+                }
             }
         }
         return new DirectoryStream<>() {
@@ -355,25 +581,137 @@ public class UnionFileSystem extends FileSystem {
         };
     }
 
+    /**
+     * Lists every file visible through this filesystem in one pass over the bases. Archive bases are listed from
+     * their central directory index, other bases are walked once with the attributes the walk already provides.
+     * A file is included if a base holds it and that base's filter accepts both it and its parent directories.
+     *
+     * @return relative names of all files, such as {@code cpw/mods/Foo.class}
+     */
+    public Set<String> listFiles() throws IOException {
+        final var names = new HashSet<String>();
+        for (final var base : bases) {
+            final var index = base.embedded() != null ? base.embedded().index() : null;
+            if (index != null) {
+                final var prefix = base.prefix();
+                final var accepted = new HashMap<String, Boolean>();
+                for (final var entry : index.entries()) {
+                    if (entry.getValue().isDirectory() || !entry.getKey().startsWith(prefix)) continue;
+                    final var name = entry.getKey().substring(prefix.length());
+                    if (!names.contains(name) && testFilter(name, false, base) && parentsAccepted(name, base, accepted)) {
+                        names.add(name);
+                    }
+                }
+            } else {
+                final var root = base.embedded() != null ? base.embedded().fs().getPath(base.prefix().isEmpty() ? SEP_STRING : base.prefix()) : base.path();
+                Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                        if (dir.equals(root) || testFilter(relativeName(root, dir), true, base)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                        final var name = relativeName(root, file);
+                        if (!attrs.isDirectory() && testFilter(name, false, base)) {
+                            names.add(name);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+        return names;
+    }
+
+    /**
+     * A checksum of a zip archive's central directory and end records, which list every file's name and CRC, for
+     * telling whether an archive changed without reading all of it. Handles zip64 archives and archives with data
+     * prepended, like the rest of the filesystem.
+     *
+     * @throws IOException if the archive can't be read or has no central directory
+     */
+    public static long centralDirectoryChecksum(final Path archive) throws IOException {
+        return ArchiveIndex.centralDirectoryChecksum(archive);
+    }
+
+    /**
+     * The size and CRC-32 of a file's content.
+     */
+    public record FileSummary(long size, long crc) {}
+
+    /**
+     * Sums up every file {@link #listFiles()} shows, as served by the first base that has it. Archive entries are
+     * summed up from their central directory without being read, other files are read to work out their CRC.
+     *
+     * @return the summaries by name, in name order
+     */
+    public SortedMap<String, FileSummary> summarizeFiles() throws IOException {
+        final var summaries = new TreeMap<String, FileSummary>();
+        for (final var name : listFiles()) {
+            final var base = findFirstBase(name);
+            if (base == null) continue;
+            final var index = base.embedded() != null ? base.embedded().index() : null;
+            if (index != null) {
+                final var entry = index.find(base.prefix() + name);
+                summaries.put(name, new FileSummary(entry.size(), entry.crc()));
+            } else {
+                final var crc = new CRC32();
+                long size = 0;
+                try (var is = Files.newInputStream(toRealPath(base, name))) {
+                    final var buffer = new byte[8192];
+                    for (int read; (read = is.read(buffer)) != -1; size += read) {
+                        crc.update(buffer, 0, read);
+                    }
+                }
+                summaries.put(name, new FileSummary(size, crc.getValue()));
+            }
+        }
+        return summaries;
+    }
+
+    private static String relativeName(final Path root, final Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private boolean parentsAccepted(final String name, final Base base, final Map<String, Boolean> accepted) {
+        if (base.filter() == null) return true;
+        final int slash = name.lastIndexOf('/');
+        if (slash == -1) return true;
+        final var parent = name.substring(0, slash);
+        var result = accepted.get(parent);
+        if (result == null) {
+            result = testFilter(parent, true, base) && parentsAccepted(parent, base, accepted);
+            accepted.put(parent, result);
+        }
+        return result;
+    }
+
+    private boolean testFilter(final String name, final Path realPath, final Base base) {
+        if (base.filter() == null) return true;
+        if (realPath.getFileSystem() == FileSystems.getDefault()) {
+            final var attributes = statCache.get(realPath);
+            return testFilter(name, attributes != null && attributes.isDirectory(), base);
+        }
+        return testFilter(name, Files.isDirectory(realPath), base);
+    }
+
     /*
      * Standardize paths:
      * Path separators converted to /
      * Directories end with /
      * Remove leading / for absolute paths
      */
-    private boolean testFilter(final Path path, final Path basePath) {
-        if (pathFilter == null) return true;
+    private boolean testFilter(String sPath, final boolean isDirectory, final Base base) {
+        if (base.filter() == null) return true;
 
-        var sPath = path.toString();
-        if (path.getFileSystem() == basePath.getFileSystem()) // Directories, zips will be different file systems.
-            sPath = basePath.relativize(path).toString().replace('\\', '/');
-        if (Files.isDirectory(path))
+        if (isDirectory)
             sPath += '/';
         if (sPath.length() > 1 && sPath.startsWith("/"))
             sPath = sPath.substring(1);
-        String sBasePath = basePath.toString().replace('\\', '/');
-        if (sBasePath.length() > 1 && sBasePath.startsWith("/"))
-            sBasePath = sBasePath.substring(1);
-        return pathFilter.test(sPath, sBasePath);
+        return base.filter().test(sPath);
     }
 }
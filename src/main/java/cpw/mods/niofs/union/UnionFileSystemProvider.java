@@ -1,19 +1,22 @@
 package cpw.mods.niofs.union;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiPredicate;
 import java.util.stream.Stream;
 
 public class UnionFileSystemProvider extends FileSystemProvider {
-    private final Map<String, UnionFileSystem> fileSystems = new HashMap<>();
+    private final Map<String, UnionFileSystem> fileSystems = new ConcurrentHashMap<>();
     private int index = 0;
 
     @Override
@@ -105,17 +108,44 @@ public class UnionFileSystemProvider extends FileSystemProvider {
         return newFileSystemInternal(key, pathfilter, paths);
     }
 
+    /**
+     * Sets aside the key a filesystem over {@code path} is mounted under later, so its URIs are known before anything
+     * is opened. See {@link #rootUri(String)} and {@link #newFileSystem(String, BiPredicate, Path...)}.
+     */
+    public String reserveKey(final Path path) {
+        return makeKey(path);
+    }
+
+    /**
+     * @return the URI the root of the filesystem mounted under {@code key} has
+     */
+    public URI rootUri(final String key) {
+        try {
+            return new URI(getScheme(), null, key + '!' + UnionFileSystem.SEP_STRING, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Mounts a filesystem under a key from {@link #reserveKey(Path)}.
+     */
+    public UnionFileSystem newFileSystem(final String reservedKey, final BiPredicate<String, String> pathfilter, final Path... paths) {
+        if (paths.length == 0) throw new IllegalArgumentException("Need at least one path");
+        if (fileSystems.containsKey(reservedKey)) throw new FileSystemAlreadyExistsException(reservedKey);
+        return newFileSystemInternal(reservedKey, pathfilter, paths);
+    }
+
     private UnionFileSystem newFileSystemInternal(final String key, final BiPredicate<String, String> pathfilter, final Path... paths) {
         var normpaths = Arrays.stream(paths)
                 .map(Path::toAbsolutePath)
                 .map(Path::normalize)
                 .toArray(Path[]::new);
 
-        synchronized (fileSystems) {
-            var ufs = new UnionFileSystem(this, pathfilter, key, normpaths);
-            fileSystems.put(key, ufs);
-            return ufs;
-        }
+        // Keys are unique, so filesystems can be mounted concurrently
+        var ufs = new UnionFileSystem(this, pathfilter, key, normpaths);
+        fileSystems.put(key, ufs);
+        return ufs;
     }
 
     private synchronized String makeKey(Path path) {
@@ -137,20 +167,48 @@ public class UnionFileSystemProvider extends FileSystemProvider {
     @Override
     public FileSystem getFileSystem(final URI uri) {
         var parts = uri.getPath().split("!");
-        if (!fileSystems.containsKey(parts[0])) throw new FileSystemNotFoundException();
-        return fileSystems.get(parts[0]);
+        var fs = fileSystems.get(parts[0]);
+        if (fs == null) throw new FileSystemNotFoundException();
+        return fs;
     }
 
     @Override
     public SeekableByteChannel newByteChannel(final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>... attrs) throws IOException {
         if (path instanceof UnionPath up) {
-            if (options.size() > 1) throw new UnsupportedOperationException();
-            if (!options.isEmpty() && !options.contains(StandardOpenOption.READ)) throw new UnsupportedOperationException();
+            checkReadOnly(options);
             return up.getFileSystem().newReadByteChannel(up);
         }
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public FileChannel newFileChannel(final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>... attrs) throws IOException {
+        if (path instanceof UnionPath up) {
+            checkReadOnly(options);
+            return up.getFileSystem().newFileChannel(up);
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public InputStream newInputStream(final Path path, final OpenOption... options) throws IOException {
+        if (path instanceof UnionPath up) {
+            checkReadOnly(Arrays.asList(options));
+            return up.getFileSystem().newInputStream(up);
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * Union filesystems are read only, anything but reading, with or without following links, is refused
+     */
+    private static void checkReadOnly(final Collection<? extends OpenOption> options) {
+        for (var option : options) {
+            if (option != StandardOpenOption.READ && !(option instanceof LinkOption))
+                throw new UnsupportedOperationException("'" + option + "' not allowed");
+        }
+    }
+
     @Override
     public DirectoryStream<Path> newDirectoryStream(final Path dir, final DirectoryStream.Filter<? super Path> filter) throws IOException {
         if (dir instanceof UnionPath up) {
@@ -229,9 +287,7 @@ public class UnionFileSystemProvider extends FileSystemProvider {
     }
 
     void removeFileSystem(UnionFileSystem fs) {
-        synchronized (fileSystems) {
-            fileSystems.remove(fs.getKey());
-        }
+        fileSystems.remove(fs.getKey());
     }
 
     private class UnionBasicFileAttributeView implements BasicFileAttributeView {
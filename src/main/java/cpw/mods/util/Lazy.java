@@ -44,8 +44,9 @@ public class Lazy<T>
     {
         synchronized (lock) {
             if (!initialized && provider != null) {
-                initialized = true;
+                // Only a value is kept, a provider that throws is asked again next time
                 this.value = provider.get();
+                initialized = true;
             }
 
             return value;
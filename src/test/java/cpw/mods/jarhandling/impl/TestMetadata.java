@@ -1,12 +1,22 @@
 package cpw.mods.jarhandling.impl;
 
+import cpw.mods.cl.JarModuleFinder;
 import cpw.mods.jarhandling.JarMetadata;
+import cpw.mods.jarhandling.SecureJar;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class TestMetadata
 {
@@ -36,4 +46,103 @@ public class TestMetadata
         Assertions.assertEquals("_1life", meta.name());
         Assertions.assertEquals("1.5", meta.version());
     }
+
+    @Test
+    void testCachedAutomaticModule() throws Exception
+    {
+        var path = Paths.get("src", "test", "resources", "signed.zip");
+        assertCached(path);
+    }
+
+    @Test
+    void testCachedModule() throws Exception
+    {
+        var dir = Files.createTempDirectory("sjhmodule");
+        var path = dir.resolve("cachedmodule-1.0.jar");
+        var cw = new ClassWriter(0);
+        cw.visit(Opcodes.V9, Opcodes.ACC_MODULE, "module-info", null, null, null);
+        var mv = cw.visitModule("test.cached", 0, "1.0");
+        mv.visitRequire("java.base", Opcodes.ACC_MANDATED, null);
+        mv.visitRequire("java.logging", Opcodes.ACC_TRANSITIVE, null);
+        mv.visitExport("test/api", 0);
+        mv.visitExport("test/impl", 0, "java.logging");
+        mv.visitUse("java.lang.Runnable");
+        mv.visitProvide("java.lang.Runnable", "test/impl/Task");
+        mv.visitMainClass("test/api/Main");
+        mv.visitEnd();
+        cw.visitEnd();
+        try (var zos = new ZipOutputStream(Files.newOutputStream(path))) {
+            zos.putNextEntry(new ZipEntry("module-info.class"));
+            zos.write(cw.toByteArray());
+            zos.putNextEntry(new ZipEntry("test/api/Main.class"));
+            zos.putNextEntry(new ZipEntry("test/impl/Task.class"));
+        }
+        try {
+            assertCached(path);
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    void testDeferred() throws Exception
+    {
+        var path = Paths.get("src", "test", "resources", "signed.zip");
+        var cache = Files.createTempDirectory("sjhdeferred");
+        System.setProperty("securejarhandler.metadataCache", cache.toString());
+        try {
+            var cold = SecureJar.deferred(path);
+            Assertions.assertTrue(cold instanceof Jar, "Built straight away when nothing is cached");
+            var warm = SecureJar.deferred(path);
+            Assertions.assertTrue(warm instanceof DeferredJar, "Deferred when the cache knows the archive");
+            var deferred = (DeferredJar) warm;
+            Assertions.assertEquals(cold.name(), warm.name());
+            Assertions.assertEquals(cold.getPackages(), warm.getPackages());
+            Assertions.assertEquals(cold.getProviders(), warm.getProviders());
+            Assertions.assertEquals(cold.moduleDataProvider().descriptor(), warm.moduleDataProvider().descriptor());
+            Assertions.assertTrue(JarModuleFinder.of(warm).find(warm.name()).isPresent());
+            Assertions.assertFalse(deferred.isInitialized(), "Listing the jar doesn't build it");
+
+            try (var in = warm.moduleDataProvider().open(JarFile.MANIFEST_NAME).orElseThrow()) {
+                Assertions.assertTrue(in.readAllBytes().length > 0);
+            }
+            Assertions.assertTrue(deferred.isInitialized());
+            Assertions.assertEquals(deferred.jar().getURI(), warm.moduleDataProvider().uri(), "Mounted where it said it would be");
+            Assertions.assertEquals(cold.hasSecurityData(), warm.hasSecurityData());
+        } finally {
+            System.clearProperty("securejarhandler.metadataCache");
+            deleteDirectory(cache);
+        }
+    }
+
+    private static void assertCached(final Path path) throws IOException
+    {
+        var cache = Files.createTempDirectory("sjhmeta");
+        System.setProperty("securejarhandler.metadataCache", cache.toString());
+        try {
+            var cold = SecureJar.from(path);
+            var warm = SecureJar.from(path);
+            Assertions.assertNotNull(((Jar) warm).cachedMetadata(), "Metadata came from the cache");
+            Assertions.assertEquals(cold.getPackages(), warm.getPackages());
+            Assertions.assertEquals(cold.getProviders(), warm.getProviders());
+            Assertions.assertEquals(cold.name(), warm.name());
+            Assertions.assertEquals(cold.moduleDataProvider().descriptor(), warm.moduleDataProvider().descriptor());
+            Assertions.assertSame(warm.moduleDataProvider().descriptor(), warm.moduleDataProvider().descriptor(), "Descriptor is built once");
+            var renamed = SecureJar.from(new Jar.DefaultMetadata(Paths.get("renamed-2.0.jar")), path);
+            Assertions.assertNull(((Jar) renamed).cachedMetadata(), "Worked out from other paths");
+            Assertions.assertEquals(JarMetadata.from(cold, Paths.get("renamed-2.0.jar")).name(), renamed.name());
+        } finally {
+            System.clearProperty("securejarhandler.metadataCache");
+            deleteDirectory(cache);
+        }
+        Assertions.assertNull(((Jar) SecureJar.from(path)).cachedMetadata(), "Not used when disabled");
+    }
+
+    private static void deleteDirectory(final Path dir) throws IOException
+    {
+        try (var files = Files.list(dir)) {
+            for (var file : files.toList()) Files.delete(file);
+        }
+        Files.delete(dir);
+    }
 }
@@ -4,12 +4,37 @@ import cpw.mods.jarhandling.SecureJar;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSigner;
 import java.security.MessageDigest;
+import java.security.Security;
+import java.security.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -43,6 +68,284 @@ public class TestSecureJarLoading {
         }
     }
 
+    @Test // Same signed jar, verified from many threads at once
+    void testConcurrentVerification() throws Exception {
+        final var path = Paths.get("src", "test", "resources", "signed.zip");
+        SecureJar jar = SecureJar.from(path);
+        final var entries = new ArrayList<Map.Entry<String, byte[]>>();
+        try (var zf = new ZipFile(path.toFile())) {
+            for (var ze : Collections.list(zf.entries())) {
+                if (ze.isDirectory() || SecureJarVerifier.isSigningRelated(ze.getName())) continue;
+                entries.add(Map.entry(ze.getName(), zf.getInputStream(ze).readAllBytes()));
+            }
+        }
+        final var executor = Executors.newFixedThreadPool(8);
+        try {
+            final var tasks = new ArrayList<Callable<CodeSigner[]>>();
+            for (int i = 0; i < 64; i++) {
+                final var entry = entries.get(i % entries.size());
+                tasks.add(() -> ((Jar)jar).verifyAndGetSigners(entry.getKey(), entry.getValue()));
+            }
+            for (var future : executor.invokeAll(tasks)) {
+                var cs = future.get();
+                assertNotNull(cs, "Has code signers array");
+                assertTrue(cs.length > 0, "With length > 0");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (var entry : entries) {
+            assertEquals(SecureJar.Status.VERIFIED, jar.getFileStatus(entry.getKey()));
+        }
+    }
+
+    @Test // Every listed entry is verified without being asked for
+    void testBackgroundVerification() throws Exception {
+        final var path = Paths.get("src", "test", "resources", "signed.zip");
+        SecureJar jar;
+        System.setProperty("securejarhandler.backgroundVerify", "true");
+        try {
+            jar = SecureJar.from(path);
+        } finally {
+            System.clearProperty("securejarhandler.backgroundVerify");
+        }
+        jar.verificationComplete().get(30, TimeUnit.SECONDS);
+        final var manifest = jar.moduleDataProvider().getManifest();
+        assertEquals(manifest.getEntries().size(), jar.verificationProgress());
+        for (var name : manifest.getEntries().keySet()) {
+            assertEquals(SecureJar.Status.VERIFIED, jar.getFileStatus(name), name);
+            assertNotNull(jar.getTrustedManifestEntries(name), "Has trusted manifest entries");
+        }
+        assertTrue(SecureJar.from(path).verificationComplete().isDone(), "Nothing to wait for when not enabled");
+    }
+
+    @Test // Results of one launch are picked up by the next
+    void testVerificationCache() throws Exception {
+        final var cacheDir = Files.createTempDirectory("sjhverify");
+        final var path = cacheDir.resolve("signed.zip");
+        Files.copy(Paths.get("src", "test", "resources", "signed.zip"), path);
+        System.setProperty("securejarhandler.verificationCache", cacheDir.toString());
+        try {
+            SecureJar cold = SecureJar.from(path);
+            final var names = cold.moduleDataProvider().getManifest().getEntries().keySet();
+            for (var name : names) {
+                try (var is = cold.moduleDataProvider().open(name).orElseThrow()) {
+                    is.readAllBytes();
+                }
+            }
+            VerificationCache.saveAll();
+
+            SecureJar warm = SecureJar.from(path);
+            // Taken once the archive's hash confirms them, off the thread building the jar
+            warm.verificationComplete().get(30, TimeUnit.SECONDS);
+            for (var name : names) {
+                assertEquals(SecureJar.Status.VERIFIED, warm.getFileStatus(name), name);
+                assertNotNull(warm.getTrustedManifestEntries(name), "Has trusted manifest entries");
+            }
+
+            // Same size, time and central directory, different content
+            final var modified = Files.getLastModifiedTime(path);
+            final var bytes = Files.readAllBytes(path);
+            bytes[35] ^= 1;
+            Files.write(path, bytes);
+            Files.setLastModifiedTime(path, modified);
+            SecureJar changed = SecureJar.from(path);
+            changed.verificationComplete().get(30, TimeUnit.SECONDS);
+            assertEquals(SecureJar.Status.NONE, changed.getFileStatus("test/Signed.class"), "Not confirmed by the hash");
+
+            try (var files = Files.list(cacheDir)) {
+                for (var file : files.filter(file -> file.toString().endsWith(".sjhv")).toList()) Files.delete(file);
+            }
+            VerificationCache.saveAll();
+            try (var files = Files.list(cacheDir)) {
+                assertEquals(0, files.filter(file -> file.toString().endsWith(".sjhv")).count(), "Tables that didn't change aren't written again");
+            }
+        } finally {
+            System.clearProperty("securejarhandler.verificationCache");
+            deleteDirectory(cacheDir);
+        }
+        assertEquals(SecureJar.Status.NONE, SecureJar.from(Paths.get("src", "test", "resources", "signed.zip")).getFileStatus("test/Signed.class"), "Not used when disabled");
+    }
+
+    private static void deleteDirectory(final Path dir) throws IOException {
+        try (var files = Files.list(dir)) {
+            for (var file : files.toList()) Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test // More signer sets than fit a byte still open
+    void testManySignerSets() throws Exception {
+        final var certPath = SecureJar.from(Paths.get("src", "test", "resources", "signed.zip")).getManifestSigners()[0].getSignerCertPath();
+        for (int count : List.of(255, 256, 1000)) {
+            final var manifest = new Manifest();
+            final var pending = new HashMap<String, CodeSigner[]>();
+            for (int i = 0; i < count; i++) {
+                final var name = "test/" + i + ".class";
+                manifest.getEntries().computeIfAbsent(name, k -> new Attributes()).putValue("SHA-256-Digest", Base64.getEncoder().encodeToString(new byte[32]));
+                // Signers with different timestamps are different signers
+                pending.put(name, new CodeSigner[] {new CodeSigner(certPath, new Timestamp(new Date(i * 1000L), certPath))});
+            }
+            final var table = new EntryStatusTable(manifest, pending);
+            for (int id = 0; id < table.size(); id++) {
+                assertArrayEquals(pending.get(table.name(id)), table.pendingSigners(id), count + " " + table.name(id));
+            }
+            assertEquals(count < 256 ? count : count * 4, table.signerIds().length, "Wider once they don't fit a byte");
+        }
+    }
+
+    @Test // Jars signed with the same certificate share their code signers
+    void testSharedSigners() throws Exception {
+        SecureJar signed = SecureJar.from(Paths.get("src", "test", "resources", "signed.zip"));
+        SecureJar partial = SecureJar.from(Paths.get("src", "test", "resources", "partial.zip"));
+        assertAll(
+                ()->assertEquals(1, signed.getManifestSigners().length),
+                ()->assertSame(signed.getManifestSigners()[0], partial.getManifestSigners()[0], "Same code signer instance"),
+                ()->assertSame(signed.getManifestSigners()[0], SecureJar.from(Paths.get("src", "test", "resources", "signed.zip")).getManifestSigners()[0])
+        );
+    }
+
+    @Test // A pinned archive is trusted as a whole
+    void testPinned() throws Exception {
+        final var path = Paths.get("src", "test", "resources", "signed.zip");
+        final var sha256 = SecureJarVerifier.toHexString(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path)));
+        final var certificate = SecureJar.from(path).getManifestSigners()[0].getSignerCertPath().getCertificates().get(0);
+        final var signer = SecureJarVerifier.toHexString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+
+        SecureJar pinned = SecureJar.from(new SecureJar.Pin(sha256.toUpperCase(), Set.of(signer)), path);
+        for (var name : pinned.moduleDataProvider().getManifest().getEntries().keySet()) {
+            assertEquals(SecureJar.Status.VERIFIED, pinned.getFileStatus(name), name);
+            assertNotNull(pinned.getTrustedManifestEntries(name), "Has trusted manifest entries");
+        }
+
+        SecureJar wrongHash = SecureJar.from(new SecureJar.Pin(sha256.replace(sha256.charAt(0), sha256.charAt(0) == '0' ? '1' : '0'), Set.of(signer)), path);
+        assertEquals(SecureJar.Status.NONE, wrongHash.getFileStatus("test/Signed.class"), "Verified entry by entry when the archive differs");
+        SecureJar wrongSigner = SecureJar.from(new SecureJar.Pin(sha256, Set.of("00")), path);
+        assertEquals(SecureJar.Status.NONE, wrongSigner.getFileStatus("test/Signed.class"), "Verified entry by entry when the signers differ");
+    }
+
+    @Test // Pinning an archive skips hashing it, it doesn't trust entries the manifest can't vouch for
+    void testPinnedMasks() throws Exception {
+        // one.txt only has a SHA-384 digest, two.txt's digest isn't Base64, three.txt is plainly signed
+        final var path = Paths.get("src", "test", "resources", "signatures", "pinmasks.jar");
+        final var sha256 = SecureJarVerifier.toHexString(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path)));
+        final var certificate = SecureJar.from(path).getManifestSigners()[0].getSignerCertPath().getCertificates().get(0);
+        final var pin = new SecureJar.Pin(sha256, Set.of(SecureJarVerifier.toHexString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()))));
+        final var original = Security.getProperty("jdk.jar.disabledAlgorithms");
+        try {
+            Security.setProperty("jdk.jar.disabledAlgorithms", original + ", SHA-384");
+            final var plain = (Jar) SecureJar.from(path);
+            final var pinned = (Jar) SecureJar.from(pin, path);
+            for (var name : List.of("test/one.txt", "test/two.txt", "test/three.txt")) {
+                final var signers = plain.verifyAndGetSigners(name, Files.readAllBytes(plain.getPath(name)));
+                assertEquals(plain.getFileStatus(name), pinned.getFileStatus(name), name);
+                assertArrayEquals(signers, pinned.verifyAndGetSigners(name, Files.readAllBytes(pinned.getPath(name))), name);
+            }
+            assertAll(
+                    ()->assertNull(pinned.verifyAndGetSigners("test/one.txt", new byte[0]), "Only digest is disabled"),
+                    ()->assertEquals(SecureJar.Status.INVALID, pinned.getFileStatus("test/two.txt"), "Malformed digest"),
+                    ()->assertNotNull(pinned.verifyAndGetSigners("test/three.txt", new byte[0]), "Signed")
+            );
+        } finally {
+            Security.setProperty("jdk.jar.disabledAlgorithms", original);
+        }
+    }
+
+    @Test
+    void testJarCache() throws Exception {
+        final var dir = Files.createTempDirectory("sjhjarcache");
+        final var path = dir.resolve("jarcache.zip");
+        final var other = dir.resolve("jarcache-other.zip");
+        Files.copy(Paths.get("src", "test", "resources", "unsigned.zip"), path);
+        Files.copy(Paths.get("src", "test", "resources", "signed.zip"), other);
+        try {
+            System.setProperty("securejarhandler.jarCache", "1");
+            try {
+                final var jar = SecureJar.from(path);
+                assertSame(jar, SecureJar.from(path), "Shared while unchanged");
+                assertSame(jar, SecureJar.from(path.toAbsolutePath()), "Paths are normalized");
+                assertNotSame(jar, SecureJar.from((p, b) -> true, path), "Filters are part of the key");
+
+                Files.setLastModifiedTime(path, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() - 10_000));
+                final var modified = SecureJar.from(path);
+                assertNotSame(jar, modified, "Rebuilt once the archive changes");
+
+                modified.getRootPath().getFileSystem().close();
+                final var reopened = SecureJar.from(path);
+                assertNotSame(modified, reopened, "Released when closed");
+
+                SecureJar.from(other);
+                assertEquals(1, JarCache.size(), "Bounded");
+                assertNotSame(reopened, SecureJar.from(path), "Least recently used is dropped");
+            } finally {
+                System.clearProperty("securejarhandler.jarCache");
+            }
+            assertNotSame(SecureJar.from(path), SecureJar.from(path), "Not shared when disabled");
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    @Test // Same files, same identity, however they are stored
+    void testContentFingerprint() throws Exception {
+        final var signed = SecureJar.from(Paths.get("src", "test", "resources", "signed.zip"));
+        final var fingerprint = signed.contentFingerprint();
+        assertSame(fingerprint, signed.contentFingerprint(), "Kept for the life of the jar");
+        assertEquals(fingerprint, SecureJar.from(Paths.get("src", "test", "resources", "signed.zip")).contentFingerprint());
+        assertNotEquals(fingerprint, SecureJar.from(Paths.get("src", "test", "resources", "unsigned.zip")).contentFingerprint());
+        assertSame(signed.contentHash(), signed.contentHash(), "Kept for the life of the jar");
+
+        final var archive = SecureJar.from(Paths.get("src", "test", "resources", "dir1.zip"));
+        final var directory = SecureJar.from(Paths.get("src", "test", "resources", "dir1"));
+        assertEquals(archive.contentFingerprint(), directory.contentFingerprint(), "Read from the central directory or the files");
+        assertEquals(archive.contentHash().get(30, TimeUnit.SECONDS), directory.contentHash().get(30, TimeUnit.SECONDS));
+        assertNotEquals(archive.contentHash().get(30, TimeUnit.SECONDS), signed.contentHash().get(30, TimeUnit.SECONDS));
+
+        // The defaults for jars built elsewhere work from any root
+        final var root = Paths.get("src", "test", "resources", "dir1");
+        assertEquals(directory.contentFingerprint(), ContentFingerprint.fingerprint(root, directory.moduleDataProvider().getManifest()));
+        assertEquals(directory.contentHash().get(30, TimeUnit.SECONDS), ContentFingerprint.hash(root, Runnable::run).get(30, TimeUnit.SECONDS));
+    }
+
+    @Test // Digest sections come back from the entry table as they were written
+    void testCompactManifest() throws Exception {
+        final var path = Paths.get("src", "test", "resources", "signed.zip");
+        final Manifest expected;
+        try (var jarFile = new JarFile(path.toFile())) {
+            expected = jarFile.getManifest();
+        }
+        final var manifest = SecureJar.from(path).moduleDataProvider().getManifest();
+        assertTrue(manifest instanceof CompactManifest, "Signed jars get a compact manifest");
+        assertEquals(expected.getMainAttributes(), manifest.getMainAttributes());
+        for (var section : expected.getEntries().entrySet()) {
+            final var attributes = manifest.getAttributes(section.getKey());
+            assertEquals(section.getValue(), attributes, section.getKey());
+            for (var name : section.getValue().keySet()) {
+                assertTrue(attributes.keySet().stream().anyMatch(n -> n.toString().equals(name.toString())), "Name written as " + name);
+            }
+        }
+        assertNull(manifest.getAttributes("not/listed.class"));
+
+        final var first = manifest.getAttributes("test/Signed.class");
+        final var copy = new Attributes(first);
+        final var second = manifest.getAttributes("test/Signed.class");
+        assertSame(first, second, "Built once");
+        assertEquals(copy, second, "Same contents");
+
+        final var written = new ByteArrayOutputStream();
+        manifest.write(written);
+        assertEquals(expected, new Manifest(new ByteArrayInputStream(written.toByteArray())), "Writes the same manifest");
+        assertEquals(expected.getEntries(), manifest.getEntries());
+        assertEquals(expected, manifest);
+        assertFalse(SecureJar.from(Paths.get("src", "test", "resources", "unsigned.zip")).moduleDataProvider().getManifest() instanceof CompactManifest);
+
+        // Changed in place, like any manifest's sections
+        final var changed = SecureJar.from(path).moduleDataProvider().getManifest();
+        changed.getAttributes("test/Signed.class").putValue("X-Changed", "yes");
+        assertEquals("yes", changed.getAttributes("test/Signed.class").getValue("X-Changed"));
+        assertEquals("yes", changed.getEntries().get("test/Signed.class").getValue("X-Changed"), "Kept once the full map is built");
+    }
+
     @Test // Nothing is signed
     void testInsecureJar() throws Exception {
         final var path = Paths.get("src", "test", "resources", "unsigned.zip");
@@ -71,12 +374,235 @@ public class TestSecureJarLoading {
         );
     }
 
+    @Test // Manifest is the last entry, where JarInputStream wouldn't look for it
+    void testManifestNotFirst() throws Exception {
+        final var dir = Files.createTempDirectory("sjhmanifest");
+        final var path = dir.resolve("manifestlast.zip");
+        try {
+            try (var zos = new ZipOutputStream(Files.newOutputStream(path))) {
+                zos.putNextEntry(new ZipEntry("test/Foo.class"));
+                zos.write(new byte[] {1, 2, 3});
+                zos.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+                zos.write("Manifest-Version: 1.0\nImplementation-Title: last\n".getBytes(StandardCharsets.UTF_8));
+            }
+            SecureJar jar = SecureJar.from(path);
+            assertAll(
+                    ()->assertFalse(jar.hasSecurityData(), "Jar is not marked secure"),
+                    ()->assertEquals("last", jar.moduleDataProvider().getManifest().getMainAttributes().getValue("Implementation-Title"), "Manifest was found")
+            );
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    @Test // Signature block doesn't verify the signature file
+    void testBrokenSignature() throws Exception {
+        final var dir = Files.createTempDirectory("sjhbroken");
+        final var path = dir.resolve("brokensignature.zip");
+        try {
+            try (var zf = new ZipFile(Paths.get("src", "test", "resources", "signed.zip").toFile());
+                 var zos = new ZipOutputStream(Files.newOutputStream(path))) {
+                for (var ze : Collections.list(zf.entries())) {
+                    var bytes = zf.getInputStream(ze).readAllBytes();
+                    if (ze.getName().endsWith(".RSA")) bytes[bytes.length - 1] ^= 1;
+                    zos.putNextEntry(new ZipEntry(ze.getName()));
+                    zos.write(bytes);
+                }
+            }
+            assertThrows(SecurityException.class, () -> SecureJar.from(path));
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    @Test // An entry and its manifest section changed after signing, the signature file no longer vouches for it
+    void testTamperedSection() throws Exception {
+        final var dir = Files.createTempDirectory("sjhtampered");
+        final var path = dir.resolve("tampered.jar");
+        try {
+            final var content = "tampered\n".getBytes(StandardCharsets.UTF_8);
+            final var digest = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+            try (var zf = new ZipFile(Paths.get("src", "test", "resources", "signatures", "rsa.jar").toFile());
+                 var zos = new ZipOutputStream(Files.newOutputStream(path))) {
+                for (var ze : Collections.list(zf.entries())) {
+                    var bytes = zf.getInputStream(ze).readAllBytes();
+                    if (ze.getName().equals("test/one.txt")) bytes = content;
+                    if (ze.getName().equals(JarFile.MANIFEST_NAME)) {
+                        final var manifest = new String(bytes, StandardCharsets.UTF_8);
+                        final var original = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest("one\n".getBytes(StandardCharsets.UTF_8)));
+                        assertTrue(manifest.contains(original), "Fixture has the digest being replaced");
+                        bytes = manifest.replace(original, digest).getBytes(StandardCharsets.UTF_8);
+                    }
+                    zos.putNextEntry(new ZipEntry(ze.getName()));
+                    zos.write(bytes);
+                }
+            }
+            assertThrows(SecurityException.class, () -> {
+                try (var jarFile = new JarFile(path.toFile()); var is = jarFile.getInputStream(jarFile.getEntry("test/one.txt"))) {
+                    is.readAllBytes();
+                }
+            }, "JarFile rejects it");
+            assertThrows(SecurityException.class, () -> SecureJar.from(path));
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    @Test // Every kind of block jarsigner writes gives the signers JarFile gives
+    void testSignatureKinds() throws Exception {
+        for (var kind : List.of("rsa", "ec", "dsa", "ed25519", "pss", "multi", "sectionsonly", "internalsf", "sha3", "sha3ec", "weak")) {
+            final var path = Paths.get("src", "test", "resources", "signatures", kind + ".jar");
+            final var expected = jarFileSigners(path);
+            final var jar = (Jar) SecureJar.from(path);
+            for (var entry : expected.entrySet()) {
+                final var bytes = Files.readAllBytes(jar.getPath(entry.getKey()));
+                final var signers = jar.verifyAndGetSigners(entry.getKey(), bytes);
+                assertEquals(entry.getValue(), signers == null ? null : Set.of(signers), kind + " " + entry.getKey());
+            }
+            if (kind.equals("weak")) {
+                assertFalse(jar.hasSecurityData(), "Disabled key sizes leave the jar unsigned");
+            } else {
+                assertNotNull(expected.get("test/one.txt"), kind + " is signed");
+                assertEquals(kind.equals("multi") ? 2 : 1, jar.getManifestSigners().length, kind);
+            }
+        }
+    }
+
+    /*
+     * The signers of each file, as JarFile has them once it has been read
+     */
+    private static Map<String, Set<CodeSigner>> jarFileSigners(final Path path) throws Exception {
+        final var signers = new HashMap<String, Set<CodeSigner>>();
+        try (var jarFile = new JarFile(path.toFile())) {
+            for (var entry : Collections.list(jarFile.entries())) {
+                if (entry.isDirectory() || SecureJarVerifier.isSigningRelated(entry.getName())) continue;
+                try (var is = jarFile.getInputStream(entry)) {
+                    is.readAllBytes();
+                }
+                signers.put(entry.getName(), entry.getCodeSigners() == null ? null : Set.of(entry.getCodeSigners()));
+            }
+        }
+        return signers;
+    }
+
+    @Test // jdk.jar.disabledAlgorithms is honoured as it is now
+    void testDisabledAlgorithms() throws Exception {
+        final var signatures = Paths.get("src", "test", "resources", "signatures");
+        final var original = Security.getProperty("jdk.jar.disabledAlgorithms");
+        try {
+            Security.setProperty("jdk.jar.disabledAlgorithms", original + ", EC, SHA3-256, RSA denyAfter 2000-01-01 & usage TLSServer");
+            assertAll(
+                    ()->assertFalse(SecureJar.from(signatures.resolve("ec.jar")).hasSecurityData(), "Disabled key algorithm"),
+                    ()->assertFalse(SecureJar.from(signatures.resolve("sha3.jar")).hasSecurityData(), "Disabled digest"),
+                    ()->assertEquals(1, SecureJar.from(signatures.resolve("multi.jar")).getManifestSigners().length, "Only the RSA signer is left"),
+                    ()->assertTrue(SecureJar.from(signatures.resolve("rsa.jar")).hasSecurityData(), "Constraints for other uses don't apply")
+            );
+            Security.setProperty("jdk.jar.disabledAlgorithms", original + ", RSA denyAfter 2000-01-01");
+            assertFalse(SecureJar.from(signatures.resolve("rsa.jar")).hasSecurityData(), "Untimestamped signatures are judged as of now");
+        } finally {
+            Security.setProperty("jdk.jar.disabledAlgorithms", original);
+        }
+        assertTrue(SecureJar.from(signatures.resolve("ec.jar")).hasSecurityData());
+    }
+
+    @Test // A block we can't check leaves the jar unsigned, one that makes no sense fails it
+    void testUnsupportedSignature() throws Exception {
+        final var signedData = new byte[] {0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x07, 0x02};
+        final var data = new byte[] {0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x07, 0x01};
+        final var sha256 = new byte[] {0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01};
+        final var rsa = new byte[] {0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01};
+        final var unknown = new byte[] {0x06, 0x03, 0x2A, 0x03, 0x04};
+        final var one = new byte[] {0x02, 0x01, 0x01};
+        final var emptyName = der(0x30);
+        final var brokenName = der(0x30, one);
+
+        final var dir = Files.createTempDirectory("sjhsignature");
+        final var unsupported = dir.resolve("unsupportedsignature.jar");
+        final var malformed = dir.resolve("malformedsignature.jar");
+        try {
+            replaceBlock(unsupported, der(0x30, signedData, der(0xA0, der(0x30, one, der(0x31), der(0x30, data),
+                    der(0x31, der(0x30, one, der(0x30, emptyName, one), der(0x30, unknown), der(0x30, rsa), der(0x04)))))));
+            replaceBlock(malformed, der(0x30, signedData, der(0xA0, der(0x30, one, der(0x31), der(0x30, data),
+                    der(0x31, der(0x30, one, der(0x30, brokenName, one), der(0x30, sha256), der(0x30, rsa), der(0x04)))))));
+            assertAll(
+                    ()->assertFalse(SecureJar.from(unsupported).hasSecurityData(), "Unknown digest algorithm"),
+                    ()->assertThrows(SecurityException.class, ()->SecureJar.from(malformed), "Issuer isn't a name")
+            );
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    private static byte[] der(final int tag, final byte[]... parts) {
+        final var out = new ByteArrayOutputStream();
+        for (var part : parts) out.writeBytes(part);
+        final var content = out.toByteArray();
+        final var encoded = new ByteArrayOutputStream();
+        encoded.write(tag);
+        encoded.write(content.length);
+        encoded.writeBytes(content);
+        return encoded.toByteArray();
+    }
+
+    private static void replaceBlock(final Path path, final byte[] block) throws Exception {
+        try (var zf = new ZipFile(Paths.get("src", "test", "resources", "signatures", "rsa.jar").toFile());
+             var zos = new ZipOutputStream(Files.newOutputStream(path))) {
+            for (var ze : Collections.list(zf.entries())) {
+                zos.putNextEntry(new ZipEntry(ze.getName()));
+                zos.write(ze.getName().endsWith(".RSA") ? block : zf.getInputStream(ze).readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void testMultiRelease() throws Exception {
+        final var dir = Files.createTempDirectory("sjhmultirelease");
+        final var path = dir.resolve("multirelease.zip");
+        final int feature = Runtime.version().feature();
+        try {
+            try (var zos = new ZipOutputStream(Files.newOutputStream(path))) {
+                zos.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+                zos.write("Manifest-Version: 1.0\nMulti-Release: true\n".getBytes(StandardCharsets.UTF_8));
+                for (var entry : List.of("test/Foo.class", "META-INF/versions/9/test/Foo.class", "META-INF/versions/" + feature + "/test/Foo.class", "META-INF/versions/" + (feature + 1) + "/test/Foo.class", "META-INF/versions/9/test/Bar.class")) {
+                    zos.putNextEntry(new ZipEntry(entry));
+                    zos.write(entry.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            SecureJar jar = SecureJar.from(path);
+            var provider = jar.moduleDataProvider();
+            assertAll(
+                    ()->assertEquals("META-INF/versions/" + feature + "/test/Foo.class", Files.readString(Path.of(provider.findFile("test/Foo.class").orElseThrow())), "Current feature version is picked"),
+                    ()->assertEquals("META-INF/versions/9/test/Bar.class", Files.readString(Path.of(provider.findFile("test/Bar.class").orElseThrow())), "Versioned only entry is found"),
+                    ()->assertEquals(Set.of("test"), jar.getPackages()),
+                    ()->assertArrayEquals(("META-INF/versions/" + feature + "/test/Foo.class").getBytes(StandardCharsets.UTF_8), provider.open("test/Foo.class").orElseThrow().readAllBytes(), "Open picks the same entry"),
+                    ()->assertTrue(provider.open("test/Missing.class").isEmpty(), "Missing entries open as empty")
+            );
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
     @Test
     void testNonExistent() throws Exception {
         final var path = Paths.get("thisdoesnotexist");
         assertThrows(UncheckedIOException.class, ()->SecureJar.from(path), "File does not exist");
     }
 
+    @Test
+    void testFromAll() throws Exception {
+        final var signed = Paths.get("src", "test", "resources", "signed.zip");
+        final var unsigned = Paths.get("src", "test", "resources", "unsigned.zip");
+        var jars = SecureJar.fromAll(List.of(new Path[] { signed }, new Path[] { unsigned }, new Path[] { signed }));
+        assertAll(
+                ()->assertEquals(3, jars.size()),
+                ()->assertEquals(signed.toAbsolutePath(), jars.get(0).getPrimaryPath()),
+                ()->assertEquals(unsigned.toAbsolutePath(), jars.get(1).getPrimaryPath()),
+                ()->assertTrue(jars.get(2).hasSecurityData())
+        );
+        var failure = assertThrows(IllegalStateException.class, ()->SecureJar.fromAll(List.of(new Path[] { Paths.get("missing1") }, new Path[] { signed }, new Path[] { Paths.get("missing2") })));
+        assertEquals(2, failure.getSuppressed().length, "Every failure is reported");
+    }
+
     @Test // Has a file that is signed, but modified
     void testTampered() throws Exception {
         final var path = Paths.get("src", "test", "resources", "tampered.zip");
@@ -87,6 +613,30 @@ public class TestSecureJarLoading {
         assertNull(cs);
     }
 
+    @Test // Entries opened through the module data provider are verified as they're read
+    void testVerifyingStream() throws Exception {
+        SecureJar signed = SecureJar.from(Paths.get("src", "test", "resources", "signed.zip"));
+        try (var is = signed.moduleDataProvider().open("test/Signed.class").orElseThrow()) {
+            assertEquals(0, is.skip(-1), "Nothing skipped backwards");
+            assertEquals(0, is.skip(0));
+            assertEquals(1, is.skip(1));
+            while (is.skip(Long.MAX_VALUE) > 0);
+        }
+        assertAll(
+                ()->assertEquals(SecureJar.Status.VERIFIED, signed.getFileStatus("test/Signed.class")),
+                ()->assertNotNull(signed.getTrustedManifestEntries("test/Signed.class"), "Has trusted manifest entries")
+        );
+
+        SecureJar tampered = SecureJar.from(Paths.get("src", "test", "resources", "tampered.zip"));
+        try (var is = tampered.moduleDataProvider().open("test/Signed.class").orElseThrow()) {
+            assertThrows(SecurityException.class, is::readAllBytes);
+        }
+        assertEquals(SecureJar.Status.INVALID, tampered.getFileStatus("test/Signed.class"));
+
+        SecureJar tampered2 = SecureJar.from(Paths.get("src", "test", "resources", "tampered.zip"));
+        assertEquals(SecureJar.Status.INVALID, tampered2.verifyPath(tampered2.getPath("test/Signed.class")));
+    }
+
     @Test // Contained a signed file, as well as a unsigned file.
     void testPartial() throws Exception {
         final var path = Paths.get("src", "test", "resources", "partial.zip");
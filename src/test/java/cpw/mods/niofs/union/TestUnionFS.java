@@ -2,20 +2,31 @@ package cpw.mods.niofs.union;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -70,6 +81,98 @@ public class TestUnionFS {
         );
     }
 
+    @Test
+    void testExistsAll() {
+        final var jar1 = Paths.get("sjh-jmh","src", "testjars", "testjar1.jar").toAbsolutePath().normalize();
+        final var jar2 = Paths.get("sjh-jmh","src", "testjars", "testjar2.jar").toAbsolutePath().normalize();
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+
+        var ufs = UFSP.newFileSystem((path, base) -> !path.equals("masktest2.txt"), jar1, jar2, dir1);
+        var names = List.of("cpw/mods/niofs/union/UnionPath.class", "net/minecraftforge/client/event/GuiOpenEvent.class",
+                "masktest.txt", "masktest2.txt", "/subdir1/./masktestsd1.txt", "cpw/mods", "Missing.class", "net/minecraftforge/client/nonexistent/Nope.class");
+        var winners = new Path[names.size()];
+        var found = ufs.existsAll(names, winners);
+        assertAll(
+                ()->assertEquals(BitSet.valueOf(new long[] { 0b110111 }), found),
+                ()->assertEquals(jar1, winners[0]),
+                ()->assertEquals(jar2, winners[1]),
+                ()->assertEquals(dir1, winners[2]),
+                ()->assertNull(winners[3]),
+                ()->assertNull(winners[7])
+        );
+        for (int i = 0; i < names.size(); i++) {
+            assertEquals(Files.exists(ufs.getPath(names.get(i))), found.get(i), names.get(i));
+        }
+    }
+
+    @Test
+    void testInputStream() throws IOException {
+        final var jar1 = Paths.get("sjh-jmh","src", "testjars", "testjar1.jar").toAbsolutePath().normalize();
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+
+        var ufs = UFSP.newFileSystem((path, base) -> true, jar1, dir1);
+        try (var zf = new ZipFile(jar1.toFile())) {
+            for (var entries = zf.entries(); entries.hasMoreElements();) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory()) continue;
+                var expected = zf.getInputStream(entry).readAllBytes();
+                try (var is = Files.newInputStream(ufs.getPath(entry.getName()))) {
+                    assertEquals(expected.length, is.available(), entry.getName());
+                    assertArrayEquals(expected, is.readAllBytes(), entry.getName());
+                    assertEquals(-1, is.read());
+                }
+                try (var is = Files.newInputStream(ufs.getPath(entry.getName()))) {
+                    var read = new ByteArrayOutputStream();
+                    for (int b = is.read(); b != -1; b = is.read()) read.write(b);
+                    assertArrayEquals(expected, read.toByteArray(), entry.getName());
+                }
+            }
+        }
+        try (var is = Files.newInputStream(ufs.getPath("masktest.txt"))) {
+            assertEquals(Files.size(dir1.resolve("masktest.txt")), is.available());
+            assertArrayEquals(Files.readAllBytes(dir1.resolve("masktest.txt")), is.readAllBytes());
+        }
+        assertThrows(NoSuchFileException.class, () -> Files.newInputStream(ufs.getPath("Missing.class")));
+    }
+
+    @Test
+    void testFileChannel() throws IOException {
+        final var stored = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+        final var jar1 = Paths.get("sjh-jmh","src", "testjars", "testjar1.jar").toAbsolutePath().normalize();
+        final var dir2 = Paths.get("src", "test", "resources", "dir2").toAbsolutePath().normalize();
+
+        var ufs = UFSP.newFileSystem((path, base) -> true, jar1, stored, dir2);
+        try (var fc = FileChannel.open(ufs.getPath("subdir1/masktestsd1.txt"))) {
+            var expected = Files.readAllBytes(ufs.getPath("subdir1/masktestsd1.txt"));
+            var mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            var bytes = new byte[mapped.remaining()];
+            mapped.get(bytes);
+            assertArrayEquals(expected, bytes);
+            var buf = ByteBuffer.allocate(expected.length);
+            assertEquals(expected.length - 1, fc.read(buf, 1));
+            assertEquals(-1, fc.read(buf, expected.length));
+        }
+        try (var fc = FileChannel.open(ufs.getPath("masktest3.txt"))) {
+            assertEquals(Files.size(dir2.resolve("masktest3.txt")), fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).remaining());
+        }
+        try (var fc = FileChannel.open(ufs.getPath("cpw/mods/niofs/union/UnionPath.class"))) {
+            var expected = Files.readAllBytes(ufs.getPath("cpw/mods/niofs/union/UnionPath.class"));
+            var buf = ByteBuffer.allocate((int) fc.size());
+            while (buf.hasRemaining() && fc.read(buf) != -1);
+            assertArrayEquals(expected, buf.array());
+            assertThrows(UnsupportedOperationException.class, () -> fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+        try (var fc = FileChannel.open(ufs.getPath("masktest3.txt"), StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+             var bc = Files.newByteChannel(ufs.getPath("masktest3.txt"), StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+             var is = Files.newInputStream(ufs.getPath("masktest3.txt"), StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+            assertEquals(Files.size(dir2.resolve("masktest3.txt")), fc.size(), "Read only options are fine together");
+            assertEquals(fc.size(), bc.size());
+            assertEquals(fc.size(), is.readAllBytes().length);
+        }
+        assertThrows(UnsupportedOperationException.class, () -> FileChannel.open(ufs.getPath("masktest3.txt"), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        assertThrows(UnsupportedOperationException.class, () -> Files.newByteChannel(ufs.getPath("masktest3.txt"), StandardOpenOption.APPEND));
+    }
+
     @Test
     void testRelativize() {
         final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
@@ -194,6 +297,115 @@ public class TestUnionFS {
         var data = assertDoesNotThrow(() -> input.readAllBytes());
     }
 
+    @Test
+    void testNestedFlattened() throws IOException {
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+        final var dir2 = Paths.get("src", "test", "resources", "dir2").toAbsolutePath().normalize();
+        final var zip1 = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+
+        var inner = UFSP.newFileSystem((path, base) -> !path.equals("masktest2.txt"), dir1, dir2);
+        var outer = UFSP.newFileSystem((path, base) -> !path.equals("masktest3.txt"), inner.getRoot());
+        assertAll(
+                ()->assertIterableEquals(List.of(inner.getRoot()), outer.getBasePaths(), "Reports the paths it was given"),
+                ()->assertEquals(inner.getRoot(), outer.getPrimaryPath()),
+                ()->assertEquals("dir2", Files.readString(outer.getPath("masktest.txt"))),
+                ()->assertTrue(Files.notExists(outer.getPath("masktest2.txt"))),
+                ()->assertTrue(Files.notExists(outer.getPath("masktest3.txt"))),
+                ()->assertTrue(Files.exists(outer.getPath("subdir1/masktestsd1.txt")))
+        );
+
+        var sub = UFSP.newFileSystem((path, base) -> true, inner.getPath("subdir1"));
+        assertAll(
+                ()->assertIterableEquals(List.of(inner.getPath("subdir1").toAbsolutePath()), sub.getBasePaths()),
+                ()->assertTrue(Files.exists(sub.getPath("masktestsd1.txt"))),
+                ()->assertTrue(Files.notExists(sub.getPath("masktest.txt")))
+        );
+
+        var innerZip = UFSP.newFileSystem((path, base) -> !path.equals("subdir1/masktestsd1.txt"), zip1);
+        var subZip = UFSP.newFileSystem((path, base) -> true, innerZip.getPath("subdir1"));
+        var outerZip = UFSP.newFileSystem((path, base) -> true, innerZip.getRoot());
+        assertAll(
+                ()->assertTrue(Files.notExists(subZip.getPath("masktestsd1.txt"))),
+                ()->assertTrue(Files.isDirectory(outerZip.getPath("subdir1"))),
+                ()->assertTrue(Files.exists(outerZip.getPath("masktest2.txt")))
+        );
+        innerZip.close();
+        assertEquals("dir1", Files.readString(outerZip.getPath("masktest.txt")));
+    }
+
+    @Test
+    void testListFiles() throws IOException {
+        final var dir1 = Paths.get("src", "test", "resources", "dir1").toAbsolutePath().normalize();
+        final var dir2 = Paths.get("src", "test", "resources", "dir2").toAbsolutePath().normalize();
+        final var zip1 = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();
+
+        for (var ufs : List.of(
+                UFSP.newFileSystem((path, base) -> !path.equals("masktest2.txt") && !path.equals("subdir1/"), dir1, dir2),
+                UFSP.newFileSystem((path, base) -> !path.equals("subdir1/masktestsd1.txt"), zip1, dir2))) {
+            final Set<String> walked;
+            try (var walk = Files.walk(ufs.getRoot())) {
+                walked = walk.filter(p -> !Files.isDirectory(p)).map(p -> ufs.getRoot().relativize(p).toString()).collect(Collectors.toSet());
+            }
+            assertEquals(walked, ufs.listFiles());
+        }
+    }
+
+    @Test
+    void testStatCacheRefresh() throws Exception {
+        final var dir = Files.createTempDirectory("sjhstat");
+        try {
+            var uncached = UFSP.newFileSystem((path, base) -> true, dir);
+            System.setProperty("securejarhandler.statCacheMillis", "600000");
+            final UnionFileSystem cached;
+            try {
+                cached = UFSP.newFileSystem((path, base) -> true, dir);
+            } finally {
+                System.clearProperty("securejarhandler.statCacheMillis");
+            }
+            assertTrue(Files.notExists(uncached.getPath("late.txt")));
+            assertTrue(Files.notExists(cached.getPath("late.txt")));
+            Files.writeString(dir.resolve("late.txt"), "late");
+            assertAll(
+                    ()->assertTrue(Files.exists(uncached.getPath("late.txt")), "Off by default"),
+                    ()->assertEquals("late", Files.readString(uncached.getPath("late.txt"))),
+                    ()->assertTrue(Files.notExists(cached.getPath("late.txt")), "Misses are trusted for the window when enabled")
+            );
+        } finally {
+            Files.deleteIfExists(dir.resolve("late.txt"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test // Read from the end records, wherever the central directory ends up
+    void testCentralDirectoryChecksum() throws Exception {
+        final var original = Paths.get("src", "test", "resources", "dir1.zip");
+        final var dir = Files.createTempDirectory("sjhcen");
+        try {
+            final var prefixed = dir.resolve("prefixed.zip");
+            try (var out = Files.newOutputStream(prefixed)) {
+                out.write("#!/bin/sh\nexec java -jar \"$0\"\n".getBytes(StandardCharsets.UTF_8));
+                Files.copy(original, out);
+            }
+            final var zip64 = dir.resolve("zip64.zip");
+            try (var out = new ZipOutputStream(Files.newOutputStream(zip64))) {
+                // More entries than the plain end record can count
+                for (int i = 0; i < 0x10000; i++) {
+                    out.putNextEntry(new ZipEntry("e" + i));
+                    out.closeEntry();
+                }
+            }
+            assertAll(
+                    ()->assertEquals(UnionFileSystem.centralDirectoryChecksum(original), UnionFileSystem.centralDirectoryChecksum(prefixed)),
+                    ()->assertNotEquals(UnionFileSystem.centralDirectoryChecksum(original), UnionFileSystem.centralDirectoryChecksum(zip64)),
+                    ()->assertThrows(IOException.class, ()->UnionFileSystem.centralDirectoryChecksum(Paths.get("src", "test", "resources", "dir1", "masktest.txt")))
+            );
+        } finally {
+            Files.deleteIfExists(dir.resolve("prefixed.zip"));
+            Files.deleteIfExists(dir.resolve("zip64.zip"));
+            Files.delete(dir);
+        }
+    }
+
     @Test
     void testFileAttributes() {
         final var dir1 = Paths.get("src", "test", "resources", "dir1.zip").toAbsolutePath().normalize();